@@ -0,0 +1,23 @@
+package com.gigamonkeys.go;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Which Engine a Board uses to work out captures and suicide.
+ */
+public enum Backend {
+
+    /**
+     * Chains and pseudo-liberty counts maintained incrementally, one
+     * point at a time.
+     */
+    CHAINS,
+
+    /**
+     * Stones kept as one long per row with groups and liberties
+     * found by shifting and masking whole rows at a time.
+     */
+    BITBOARD
+}
@@ -0,0 +1,172 @@
+package com.gigamonkeys.go;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Engine that keeps each color's stones as one long per row of the
+ * board, bit x of row y being the point y * size + x, and finds
+ * groups and liberties by shifting and masking whole rows at a time
+ * rather than visiting points one by one. A group is flood filled by
+ * repeatedly growing it one step in every direction and masking with
+ * the stones of its color until it stops changing. Limited to boards
+ * of up to 64 points on a side.
+ */
+class BitboardEngine implements Engine {
+
+    private final int size;
+    private final int last;
+    private final long rowMask;
+    private final int[] row;
+    private final int[] column;
+    private final int[] adjacent;
+    private final int[] degree;
+
+    private final long[] black;
+    private final long[] white;
+
+    // Scratch rows: the group being filled and all the stones the
+    // move being evaluated captures.
+    private final long[] group;
+    private final long[] dead;
+
+    // Row range touched by the last fill.
+    private int lo;
+    private int hi;
+
+    BitboardEngine(Topology topology) {
+        if (topology.size > 64) {
+            throw new IllegalArgumentException("Bitboards only go up to 64x64.");
+        }
+        this.size     = topology.size;
+        this.last     = size - 1;
+        this.rowMask  = size == 64 ? -1L : (1L << size) - 1;
+        this.row      = topology.row;
+        this.column   = topology.column;
+        this.adjacent = topology.adjacent;
+        this.degree   = topology.degree;
+        this.black    = new long[size];
+        this.white    = new long[size];
+        this.group    = new long[size];
+        this.dead     = new long[size];
+    }
+
+    public boolean evaluate(Color color, int position, BitSet captured) {
+
+        long[] friends = color == Color.BLACK ? black : white;
+        long[] enemies = color == Color.BLACK ? white : black;
+        int y          = row[position];
+        long bit       = 1L << column[position];
+
+        captured.clear();
+        Arrays.fill(dead, 0);
+        boolean alive = false;
+        boolean any   = false;
+
+        for (int j = 4 * position, end = j + degree[position]; j < end; j++) {
+            int n    = adjacent[j];
+            int ny   = row[n];
+            long nb  = 1L << column[n];
+            if (((black[ny] | white[ny]) & nb) == 0) {
+                alive = true;
+            } else if ((enemies[ny] & nb) != 0 && (dead[ny] & nb) == 0) {
+                fill(enemies, ny, nb);
+                if (!hasLiberty(y, bit)) {
+                    for (int r = lo; r <= hi; r++) dead[r] |= group[r];
+                    alive = true;
+                    any   = true;
+                }
+            }
+        }
+
+        if (any) {
+            for (int r = 0; r < size; r++) {
+                for (long bits = dead[r]; bits != 0; bits &= bits - 1) {
+                    captured.set(r * size + Long.numberOfTrailingZeros(bits));
+                }
+            }
+        }
+
+        if (!alive) {
+            // No empty neighbor and nothing captured: we live only if
+            // the group we'd join has a liberty somewhere else.
+            friends[y] |= bit;
+            fill(friends, y, bit);
+            friends[y] &= ~bit;
+            alive = hasLiberty(y, bit);
+        }
+        return alive;
+    }
+
+    public void place(Color color, int position, BitSet captured) {
+        long[] friends = color == Color.BLACK ? black : white;
+        long[] enemies = color == Color.BLACK ? white : black;
+        friends[row[position]] |= 1L << column[position];
+        for (int i = captured.nextSetBit(0); i != -1; i = captured.nextSetBit(i + 1)) {
+            enemies[row[i]] &= ~(1L << column[i]);
+        }
+    }
+
+    public void undo(Color color, int position, BitSet restored) {
+        long[] friends = color == Color.BLACK ? black : white;
+        long[] enemies = color == Color.BLACK ? white : black;
+        friends[row[position]] &= ~(1L << column[position]);
+        for (int i = restored.nextSetBit(0); i != -1; i = restored.nextSetBit(i + 1)) {
+            enemies[row[i]] |= 1L << column[i];
+        }
+    }
+
+    /*
+     * Flood fill the group of stones containing the point (y, bit)
+     * into group, setting lo and hi to the rows it spans.
+     */
+    private void fill(long[] stones, int y, long bit) {
+        Arrays.fill(group, 0);
+        group[y] = bit;
+        lo = hi = y;
+
+        boolean changed = true;
+        while (changed) {
+            changed  = false;
+            int from = Math.max(lo - 1, 0);
+            int to   = Math.min(hi + 1, last);
+            for (int r = from; r <= to; r++) {
+                long g     = group[r];
+                long grown = g | (g << 1) | (g >>> 1);
+                if (r > 0)    grown |= group[r - 1];
+                if (r < last) grown |= group[r + 1];
+                grown &= stones[r];
+                if (grown != g) {
+                    group[r] = grown;
+                    changed  = true;
+                    if (r < lo) lo = r;
+                    if (r > hi) hi = r;
+                }
+            }
+        }
+    }
+
+    /*
+     * Does the group left by the last fill have a liberty other than
+     * the point (y, bit) we're about to play on?
+     */
+    private boolean hasLiberty(int y, long bit) {
+        int from = Math.max(lo - 1, 0);
+        int to   = Math.min(hi + 1, last);
+        for (int r = from; r <= to; r++) {
+            long g     = group[r];
+            long grown = g | (g << 1) | (g >>> 1);
+            if (r > 0)    grown |= group[r - 1];
+            if (r < last) grown |= group[r + 1];
+            long empty = ~(black[r] | white[r]) & rowMask;
+            if (r == y) empty &= ~bit;
+            if ((grown & empty) != 0) return true;
+        }
+        return false;
+    }
+
+}
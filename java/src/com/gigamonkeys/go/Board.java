@@ -11,186 +11,367 @@ public class Board {
     public final int size;
     public final double komi;
     public final int positions;
+    public final KoRule koRule;
+    public final Topology topology;
+    public final Backend backend;
     private final BitSet blackStones;
     private final BitSet whiteStones;
-    private final List<BoardListener> listeners = new ArrayList<BoardListener>(5);
-
-    private LinkedList<Position> previousPositions = new LinkedList<Position>();
-
-    public Board(int size, double komi) {
+    private final List<MoveListener> listeners = new ArrayList<MoveListener>(5);
+
+    // Works out captures and suicide.
+    private final Engine engine;
+
+    // Reused for the stones captured by each move.
+    private final BitSet captured;
+
+    // Reused by legalMoves.
+    private final BitSet legal;
+    private final BitSet scratch;
+
+    // Set by evaluate to the hash of the position after the move.
+    private long nextHash;
+
+    // Results of tryPlaceStone.
+    public final static int OK       = 0;
+    public final static int OCCUPIED = 1;
+    public final static int SUICIDE  = 2;
+    public final static int KO       = 3;
+
+    // Running counts of stones on the board and stones captured, by
+    // color, so the score never has to be counted up.
+    private int blackCount    = 0;
+    private int whiteCount    = 0;
+    private int blackCaptured = 0;
+    private int whiteCaptured = 0;
+
+    // Undo journal. For each move we record three ints in moveLog:
+    // the position and color of the stone and the start of its
+    // captured stones in capturedLog. Together with the hash history
+    // and the engine's own journal that's everything needed to take
+    // the move back in time proportional to what it changed.
+    private int[] moveLog     = new int[3 * 64];
+    private int[] capturedLog = new int[64];
+    private int capturedSize  = 0;
+
+    // Zobrist hashing. Each (point, color) pair gets a random 64-bit
+    // key and the hash of a position is the xor of the keys of all
+    // the stones on the board, so it can be updated incrementally as
+    // stones come and go. history[i] is the hash of the position
+    // after i moves, with the extra key whiteToPlay mixed in when it
+    // was black that made the move, so simple ko can tell positions
+    // with different players to move apart; seen holds the plain
+    // position hashes for positional superko.
+    private final long[] zobrist;
+    private final long whiteToPlay;
+    private long hash = 0;
+    private long[] history = new long[64];
+    private int moves = 0;
+    private final LongHashSet seen;
+
+    public Board(int size, double komi, KoRule koRule, Backend backend) {
         this.size        = size;
         this.komi        = komi;
+        this.koRule      = koRule;
+        this.backend     = backend;
         this.positions   = size * size;
+        this.topology    = Topology.forSize(size);
         this.blackStones = new BitSet(positions);
         this.whiteStones = new BitSet(positions);
+        this.engine      = makeEngine(backend);
+        this.captured    = new BitSet(positions);
+        this.legal       = new BitSet(positions);
+        this.scratch     = new BitSet(positions);
+        this.zobrist     = zobristKeys(positions);
+        this.whiteToPlay = zobrist[2 * positions];
+        this.seen        = new LongHashSet(positions);
+        seen.add(hash);
+    }
+
+    public Board(int size, double komi, KoRule koRule) {
+        this(size, komi, koRule, Backend.CHAINS);
+    }
+
+    public Board(int size, double komi) {
+        this(size, komi, KoRule.POSITIONAL_SUPERKO);
     }
 
     public Board(int size) {
         this(size, 6.5);
     }
 
-    public void addBoardListener(BoardListener listener) {
+    public void addMoveListener(MoveListener listener) {
         listeners.add(listener);
     }
 
+    /**
+     * Add a listener that gets a BoardEvent for every stone added or
+     * removed. Allocates an event per stone; MoveListener is cheaper.
+     */
+    public void addBoardListener(BoardListener listener) {
+        listeners.add(new BoardListenerAdapter(this, listener));
+    }
+
     /**
      * Get the list of neighboring points. Either two, three, or four
-     * depending whether position is a corner, edge, or middle point.
+     * depending whether position is a corner, edge, or middle
+     * point. Allocates; the move code walks the topology directly.
      */
     public List<Integer> neighbors(int position) {
-
-        int x   = position % size;
-        int y   = position / size;
-        int max = size - 1;
-
         List<Integer> neighbors = new ArrayList<Integer>(4);
-        if (y > 0)   neighbors.add(position - size); // North
-        if (y < max) neighbors.add(position + size); // South
-        if (x > 0)   neighbors.add(position - 1);    // East
-        if (x < max) neighbors.add(position + 1);    // West
+        int start = 4 * position;
+        for (int i = start; i < start + topology.degree[position]; i++) {
+            neighbors.add(topology.adjacent[i]);
+        }
         return neighbors;
     }
 
+    /**
+     * Place a stone, throwing IllegalMoveException if the move isn't
+     * legal. See tryPlaceStone for a version that doesn't throw.
+     */
     public void placeStone(Color color, int position) {
-
-        if (!isEmpty(position)) {
+        switch (tryPlaceStone(color, position)) {
+        case OCCUPIED:
             throw new IllegalMoveException("Position occpupied.", position);
+        case SUICIDE:
+            throw new IllegalMoveException("Suicide.", position);
+        case KO:
+            throw new IllegalMoveException("Ko", position);
         }
+    }
+
+    /**
+     * Place a stone if the move is legal, returning OK. Otherwise
+     * return OCCUPIED, SUICIDE, or KO and leave the board unchanged.
+     */
+    public int tryPlaceStone(Color color, int position) {
+
+        int status = evaluate(color, position, captured);
+        if (status != OK) return status;
 
         BitSet friends = friends(color);
         BitSet enemies = enemies(color);
 
-        // Place the stone.
+        logMove(color, position);
+
+        // Place the stone and remove the stones we killed.
         friends.set(position);
+        enemies.andNot(captured);
+        engine.place(color, position, captured);
+        recordHash(color, nextHash);
+        count(color, 1, captured.cardinality());
 
-        // Remove any neighboring enemy groups we killed .
-        BitSet killed = killed(position, friends, enemies);
-        enemies.andNot(killed);
+        for (MoveListener listener: listeners) {
+            listener.movePlayed(position, color, captured);
+        }
+        return OK;
+    }
 
-        Position newPosition = new Position(color, blackStones, whiteStones);
+    /**
+     * Get the set of points where color could legally play right
+     * now, computed in one pass over the empty points. The returned
+     * BitSet belongs to the board and is overwritten by the next
+     * call so it should be treated as read only.
+     */
+    public BitSet legalMoves(Color color) {
+        legal.clear();
+        for (int p = 0; p < positions; p++) {
+            if (isEmpty(p) && evaluate(color, p, scratch) == OK) {
+                legal.set(p);
+            }
+        }
+        return legal;
+    }
 
-        // Check for Ko. Not actually implemented yet.
-        if (isKo(newPosition)) {
-            enemies.or(killed);
-            friends.clear(position);
-            throw new IllegalMoveException("Ko", position);
+    /*
+     * Check whether color can play at position without changing
+     * anything, filling in the stones the move would capture and
+     * setting nextHash to the hash of the resulting position.
+     */
+    private int evaluate(Color color, int position, BitSet captured) {
+
+        if (!isEmpty(position)) return OCCUPIED;
+
+        if (!engine.evaluate(color, position, captured)) return SUICIDE;
+
+        long newHash = hash ^ key(color, position);
+        Color other  = other(color);
+        for (int i = captured.nextSetBit(0); i != -1; i = captured.nextSetBit(i + 1)) {
+            newHash ^= key(other, i);
         }
 
-        // Check for suicide.
-        Stones us = connectedTo(position);
-        if (!us.alive) {
-            // Don't have to worry about putting back killed because
-            // if there were any killed then we won't end up in this
-            // branch.
-            friends.clear(position);
-            throw new IllegalMoveException("Suicide.", position);
+        if (isKo(color, newHash)) return KO;
+
+        nextHash = newHash;
+        return OK;
+    }
+
+    /**
+     * Take back the most recent move, restoring the board, the
+     * captured stones, and the ko state. Listeners see the stone
+     * being removed and the captured stones being added back.
+     */
+    public void undo() {
+
+        if (moves == 0) {
+            throw new IllegalStateException("No moves to undo.");
+        }
+
+        int base      = 3 * (moves - 1);
+        int position  = moveLog[base];
+        Color color   = Color.values()[moveLog[base + 1]];
+        int capStart  = moveLog[base + 2];
+        Color other   = other(color);
+
+        // Every position in seen is unique under superko, so the
+        // current one was added by this move.
+        if (koRule == KoRule.POSITIONAL_SUPERKO) seen.remove(hash);
+
+        captured.clear();
+        long oldHash = hash ^ key(color, position);
+        for (int i = capStart; i < capturedSize; i++) {
+            captured.set(capturedLog[i]);
+            oldHash ^= key(other, capturedLog[i]);
         }
 
-        if (previousPositions.size() == 2) previousPositions.pop();
-        previousPositions.add(newPosition);
+        friends(color).clear(position);
+        enemies(color).or(captured);
+        engine.undo(color, position, captured);
 
-        fireBoardEvents(position, color, killed);
+        count(color, -1, capStart - capturedSize);
+        capturedSize = capStart;
+        moves--;
+        hash = oldHash;
+
+        for (MoveListener listener: listeners) {
+            listener.moveUndone(position, color, captured);
+        }
+    }
+
+    /**
+     * Position of the most recent move still on the board, or -1 if
+     * there isn't one.
+     */
+    public int lastMove() {
+        return moves == 0 ? -1 : moveLog[3 * (moves - 1)];
     }
 
     public Score score() {
-        int black    = blackStones.cardinality();
-        int white    = whiteStones.cardinality();
-        Color winner = black > (white + komi) ? Color.BLACK : Color.WHITE;
-        return new Score(winner, black, white);
+        Color winner = blackCount > (whiteCount + komi) ? Color.BLACK : Color.WHITE;
+        return new Score(winner, blackCount, whiteCount, blackCaptured, whiteCaptured, komi);
+    }
 
+    /**
+     * Number of stones of the given color on the board.
+     */
+    public int stonesOnBoard(Color color) {
+        return color == Color.BLACK ? blackCount : whiteCount;
     }
 
-    private void fireBoardEvents(int position, Color color, BitSet killed) {
+    /**
+     * Number of stones of the given color captured so far.
+     */
+    public int capturedStones(Color color) {
+        return color == Color.BLACK ? blackCaptured : whiteCaptured;
+    }
 
-        Color other = other(color);
-        BoardEvent added = new BoardEvent(this, position, color, true);
-        List<BoardEvent> removed = new ArrayList<BoardEvent>();
+    /*
+     * Adjust the counts for color placing (or, with placed -1,
+     * taking back) a stone that captured the given number of the
+     * other color's stones.
+     */
+    private void count(Color color, int placed, int captures) {
+        if (color == Color.BLACK) {
+            blackCount    += placed;
+            whiteCount    -= captures;
+            whiteCaptured += captures;
+        } else {
+            whiteCount    += placed;
+            blackCount    -= captures;
+            blackCaptured += captures;
+        }
+    }
 
-        for (int i = killed.nextSetBit(0); i != -1; i = killed.nextSetBit(i + 1)) {
-            removed.add(new BoardEvent(this, i, other, false));
+    /*
+     * Record a move in the journal, before anything is changed.
+     */
+    private void logMove(Color color, int position) {
+        int base = 3 * moves;
+        if (base == moveLog.length) {
+            moveLog = Arrays.copyOf(moveLog, moveLog.length * 2);
         }
+        moveLog[base]     = position;
+        moveLog[base + 1] = color.ordinal();
+        moveLog[base + 2] = capturedSize;
 
-        for (BoardListener listener: listeners) {
-            listener.stoneAdded(added);
-            for (BoardEvent e: removed) {
-                listener.stoneRemoved(e);
+        for (int i = captured.nextSetBit(0); i != -1; i = captured.nextSetBit(i + 1)) {
+            if (capturedSize == capturedLog.length) {
+                capturedLog = Arrays.copyOf(capturedLog, capturedLog.length * 2);
             }
+            capturedLog[capturedSize++] = i;
         }
-
     }
 
-    /*
-     * Get (possibly empty) set of stones killed by playing at position.
-     */
-    private BitSet killed(int position, BitSet friends, BitSet enemies) {
+    private boolean isKo(Color color, long newHash) {
 
-        BitSet live = new BitSet(positions);
-        BitSet dead = new BitSet(positions);
+        // Simple ko rule: playing the current move cannot create the
+        // same position as our opponent faced after our previous
+        // move, i.e. the position two moves back. Positional superko
+        // rules out recreating any earlier position at all, which
+        // also rules out the longer cycles (triple ko and the like)
+        // that simple ko lets go on forever.
+
+        switch (koRule) {
+        case SIMPLE:
+            return moves > 0 && history[moves - 1] == situation(color, newHash);
+        case POSITIONAL_SUPERKO:
+            return seen.contains(newHash);
+        default:
+            throw new IllegalStateException("Unknown ko rule: " + koRule);
+        }
+    }
 
-        for (int n: neighbors(position)) {
-            if (enemies.get(n) && !(live.get(n) || dead.get(n))) {
-                Stones s = connectedTo(n);
-                (s.alive ? live : dead).or(s.stones);
-            }
+    private void recordHash(Color color, long newHash) {
+        if (++moves == history.length) {
+            history = Arrays.copyOf(history, history.length * 2);
         }
-        return dead;
+        history[moves] = situation(color, newHash);
+        hash           = newHash;
+        if (koRule == KoRule.POSITIONAL_SUPERKO) seen.add(newHash);
+    }
+
+    private long situation(Color justPlayed, long positionHash) {
+        return justPlayed == Color.BLACK ? positionHash ^ whiteToPlay : positionHash;
+    }
+
+    private long key(Color color, int position) {
+        return zobrist[2 * position + (color == Color.BLACK ? 0 : 1)];
     }
 
     /**
-     * Walk the group starting from the stone at the given position,
-     * returning either the set of stones needed to determine that the
-     * group is alive or the complete group if it is dead.
+     * Zobrist hash of the current position. Depends only on the
+     * stones on the board and is the same for any two boards of the
+     * same size with the same stones.
      */
-    private Stones connectedTo(int position) {
-
-        BitSet stones            = new BitSet(positions);
-        Queue<Integer> toProcess = new LinkedList<Integer>();
-
-        // Get the ball rolling ...
-        stones.set(position);
-        toProcess.add(position);
-
-        BitSet friends = friends(color(position));
-
-        while (!toProcess.isEmpty()) {
-            int p = toProcess.remove();
-            for (int n: neighbors(p)) {
-                if (isEmpty(n)) {
-                    return live(stones);
-                } else if (friends.get(n) && !stones.get(n)) {
-                    stones.set(n);
-                    toProcess.add(n);
-                }
-            }
-        }
-        return dead(stones);
+    public long hash() {
+        return hash;
     }
 
-    private boolean isKo(Position newPosition) {
+    private static long[] zobristKeys(int positions) {
+        // Fixed seed so hashes are comparable across boards.
+        Random random = new Random(positions);
+        long[] keys = new long[2 * positions + 1];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextLong();
+        }
+        return keys;
+    }
 
-        // Simple ko rule: playing the current move cannot create the
-        // same position as our opponent faced after our prevous move.
-        // So store the previous two positions. E.g. the position
-        // after black's move (with white to play), and then the
-        // position after white's move (with black to play). Now it is
-        // black to play. If after black's move, the position in the
-        // same as the previous white-to-play position, that's Ko and
-        // illegal. If not, then forget about the old white-to-play
-        // move and remember the new-one. (The next move, by white,
-        // will use the black-to-play.)
-
-        // Could also implement more complex "positional superko" rule
-        // by keeping a list of every prior position (including
-        // player-to-move) and checking the resutling position against
-        // every prior position. Could be done resonably efficiently
-        // by a) only looking at positions with the same player to
-        // play, b) caching the number of each kind of stone on the
-        // board and first making sure they match.
-
-        if (previousPositions.size() == 2) {
-            return previousPositions.peek().equals(newPosition);
-        } else {
-            return false;
+    private Engine makeEngine(Backend backend) {
+        switch (backend) {
+        case CHAINS:   return new ChainEngine(topology, blackStones, whiteStones);
+        case BITBOARD: return new BitboardEngine(topology);
+        default: throw new IllegalArgumentException("Unknown backend: " + backend);
         }
     }
 
@@ -238,44 +419,6 @@ public class Board {
     }
 
 
-    private static class Stones {
-        public final BitSet stones;
-        public final boolean alive;
-        Stones(BitSet stones, boolean alive) {
-            this.stones = stones;
-            this.alive = alive;
-        }
-    }
-
-    private Stones live(BitSet stones) { return new Stones(stones, true); }
-
-    private Stones dead(BitSet stones) { return new Stones(stones, false); }
-
-
-    private static class Position {
-
-        private final Color justPlayed;
-        private final BitSet blackStones;
-        private final BitSet whiteStones;
-
-        Position(Color justPlayed, BitSet blackStones, BitSet whiteStones) {
-            this.justPlayed  = justPlayed;
-            this.blackStones = (BitSet)blackStones.clone();
-            this.whiteStones = (BitSet)whiteStones.clone();
-        }
-
-        public boolean equals(Object other) {
-            if (other instanceof Position) {
-                Position that = (Position)other;
-                return this.justPlayed.equals(that.justPlayed) &&
-                    this.blackStones.equals(that.blackStones) &&
-                    this.whiteStones.equals(that.whiteStones);
-            }
-            return false;
-        }
-
-    }
-
     public String toString() {
         StringBuffer buf = new StringBuffer();
         for (int p = 0; p < positions; p++) {
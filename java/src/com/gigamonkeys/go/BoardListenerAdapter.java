@@ -0,0 +1,42 @@
+package com.gigamonkeys.go;
+
+import java.util.BitSet;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Adapts a BoardListener to the MoveListener interface by turning
+ * each move into one BoardEvent per stone added or removed.
+ */
+class BoardListenerAdapter implements MoveListener {
+
+    private final Object source;
+    private final BoardListener listener;
+
+    BoardListenerAdapter(Object source, BoardListener listener) {
+        this.source   = source;
+        this.listener = listener;
+    }
+
+    public void movePlayed(int position, Color color, BitSet captured) {
+        Color other = other(color);
+        listener.stoneAdded(new BoardEvent(source, position, color, true));
+        for (int i = captured.nextSetBit(0); i != -1; i = captured.nextSetBit(i + 1)) {
+            listener.stoneRemoved(new BoardEvent(source, i, other, false));
+        }
+    }
+
+    public void moveUndone(int position, Color color, BitSet restored) {
+        Color other = other(color);
+        listener.stoneRemoved(new BoardEvent(source, position, color, false));
+        for (int i = restored.nextSetBit(0); i != -1; i = restored.nextSetBit(i + 1)) {
+            listener.stoneAdded(new BoardEvent(source, i, other, true));
+        }
+    }
+
+    private static Color other(Color color) {
+        return color == Color.BLACK ? Color.WHITE : Color.BLACK;
+    }
+}
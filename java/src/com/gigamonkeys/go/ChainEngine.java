@@ -0,0 +1,225 @@
+package com.gigamonkeys.go;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Engine that keeps chain bookkeeping up to date as stones are
+ * placed and captured so we never have to search the board to find
+ * out whether a group lives or dies. Every stone belongs to a chain
+ * identified by the position of one of its stones (chain[p] is -1
+ * for empty points). The stones of a chain are linked into a
+ * circular list through nextStone so a chain can be walked
+ * directly. For each chain id we keep its size and its count of
+ * pseudo-liberties: the number of (stone, empty neighbor) pairs, so
+ * a point adjacent to two stones of a chain counts twice. The count
+ * is zero exactly when the chain has no liberties, which is all
+ * capture and suicide checks need to know.
+ */
+class ChainEngine implements Engine {
+
+    private final BitSet blackStones;
+    private final BitSet whiteStones;
+    private final int[] adjacent;
+    private final int[] degree;
+
+    private final int[] chain;
+    private final int[] nextStone;
+    private final int[] chainSize;
+    private final int[] liberties;
+
+    // Every write to the chain arrays is preceded by saving the old
+    // value on the trail (which array, which index, what value) so
+    // undoing a move is just popping the trail back to the mark
+    // recorded when the move was made.
+    private int[][] trailArrays = new int[256][];
+    private int[] trailIndexes  = new int[256];
+    private int[] trailValues   = new int[256];
+    private int trailSize       = 0;
+    private int[] marks         = new int[64];
+    private int moves           = 0;
+
+    ChainEngine(Topology topology, BitSet blackStones, BitSet whiteStones) {
+        this.blackStones = blackStones;
+        this.whiteStones = whiteStones;
+        this.adjacent    = topology.adjacent;
+        this.degree      = topology.degree;
+        this.chain       = new int[topology.positions];
+        this.nextStone   = new int[topology.positions];
+        this.chainSize   = new int[topology.positions];
+        this.liberties   = new int[topology.positions];
+        Arrays.fill(chain, -1);
+    }
+
+    public boolean evaluate(Color color, int position, BitSet captured) {
+
+        BitSet enemies = color == Color.BLACK ? whiteStones : blackStones;
+
+        // Find any neighboring enemy chains whose last liberty we're
+        // filling and check that the new stone will have a liberty
+        // of its own: an empty neighbor, a captured neighbor, or a
+        // friendly chain with some liberty besides this point.
+        captured.clear();
+        boolean alive = false;
+
+        for (int j = 4 * position, end = j + degree[position]; j < end; j++) {
+            int n = adjacent[j];
+            int c = chain[n];
+            if (c == -1) {
+                alive = true;
+            } else if (enemies.get(n)) {
+                if (!captured.get(n) && liberties[c] == adjacencies(c, position)) {
+                    addStones(c, captured);
+                    alive = true;
+                }
+            } else if (liberties[c] > adjacencies(c, position)) {
+                alive = true;
+            }
+        }
+        return alive;
+    }
+
+    /*
+     * Bring the chain bookkeeping up to date. The captured stones
+     * are still recorded in chain[] at this point so we can tell
+     * which neighbors were empty before the move.
+     */
+    public void place(Color color, int position, BitSet captured) {
+
+        BitSet friends = color == Color.BLACK ? blackStones : whiteStones;
+
+        if (moves == marks.length) {
+            marks = Arrays.copyOf(marks, marks.length * 2);
+        }
+        marks[moves++] = trailSize;
+
+        // The other arrays don't mean anything for an empty point
+        // but a stone captured earlier may still be using them if
+        // we undo back past its capture.
+        save(chain, position);
+        save(nextStone, position);
+        save(chainSize, position);
+        save(liberties, position);
+        chain[position]     = position;
+        nextStone[position] = position;
+        chainSize[position] = 1;
+        liberties[position] = 0;
+
+        for (int j = 4 * position, end = j + degree[position]; j < end; j++) {
+            int n = adjacent[j];
+            if (chain[n] == -1) {
+                liberties[position]++;
+            } else {
+                save(liberties, chain[n]);
+                liberties[chain[n]]--;
+            }
+        }
+
+        for (int j = 4 * position, end = j + degree[position]; j < end; j++) {
+            int n = adjacent[j];
+            if (friends.get(n) && chain[n] != chain[position]) {
+                merge(chain[position], chain[n]);
+            }
+        }
+
+        // Take the captured stones off and give their neighbors back
+        // the liberties. Do it in two passes so stones of the dead
+        // chain don't give liberties to each other.
+        for (int i = captured.nextSetBit(0); i != -1; i = captured.nextSetBit(i + 1)) {
+            save(chain, i);
+            chain[i] = -1;
+        }
+        for (int i = captured.nextSetBit(0); i != -1; i = captured.nextSetBit(i + 1)) {
+            for (int j = 4 * i, end = j + degree[i]; j < end; j++) {
+                int n = adjacent[j];
+                if (chain[n] != -1) {
+                    save(liberties, chain[n]);
+                    liberties[chain[n]]++;
+                }
+            }
+        }
+    }
+
+    public void undo(Color color, int position, BitSet restored) {
+        int mark = marks[--moves];
+        while (trailSize > mark) {
+            trailSize--;
+            trailArrays[trailSize][trailIndexes[trailSize]] = trailValues[trailSize];
+            trailArrays[trailSize] = null;
+        }
+    }
+
+    /*
+     * Save the current value of array[index] on the trail before
+     * changing it.
+     */
+    private void save(int[] array, int index) {
+        if (trailSize == trailValues.length) {
+            int n = trailValues.length * 2;
+            trailArrays  = Arrays.copyOf(trailArrays, n);
+            trailIndexes = Arrays.copyOf(trailIndexes, n);
+            trailValues  = Arrays.copyOf(trailValues, n);
+        }
+        trailArrays[trailSize]  = array;
+        trailIndexes[trailSize] = index;
+        trailValues[trailSize]  = array[index];
+        trailSize++;
+    }
+
+    /*
+     * Merge two chains, relabeling the stones of the smaller one.
+     */
+    private void merge(int a, int b) {
+        if (chainSize[a] < chainSize[b]) {
+            int tmp = a;
+            a = b;
+            b = tmp;
+        }
+
+        int s = b;
+        do {
+            save(chain, s);
+            chain[s] = a;
+            s = nextStone[s];
+        } while (s != b);
+
+        save(nextStone, a);
+        save(nextStone, b);
+        save(chainSize, a);
+        save(liberties, a);
+
+        // Splice the two circular lists together.
+        int tmp      = nextStone[a];
+        nextStone[a] = nextStone[b];
+        nextStone[b] = tmp;
+
+        chainSize[a] += chainSize[b];
+        liberties[a] += liberties[b];
+    }
+
+    /*
+     * Number of stones in chain c adjacent to position, i.e. the
+     * number of pseudo-liberties chain c would lose if position was
+     * filled.
+     */
+    private int adjacencies(int c, int position) {
+        int count = 0;
+        for (int j = 4 * position, end = j + degree[position]; j < end; j++) {
+            if (chain[adjacent[j]] == c) count++;
+        }
+        return count;
+    }
+
+    private void addStones(int c, BitSet stones) {
+        int s = c;
+        do {
+            stones.set(s);
+            s = nextStone[s];
+        } while (s != c);
+    }
+
+}
@@ -0,0 +1,23 @@
+package com.gigamonkeys.go;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * A Program compiled to JVM bytecode by Jit. Running it has exactly
+ * the same effect as running the Program in VM.execute given the same
+ * arguments. Since we need to get both the final position and
+ * direction back, they are packed into a long: position in the high
+ * 32 bits and direction in the low. The cycle limit is expressed the
+ * way VM.execute checks it: execution stops when the total cost of
+ * the ops executed exceeds limit.
+ */
+interface CompiledProgram {
+
+    long run(int position, int direction, int[] step, int[] perception, Perception source,
+             int[] stack, int[] callstack, int[] memory, Random random, int limit);
+
+}
@@ -0,0 +1,98 @@
+package com.gigamonkeys.go;
+
+import java.util.BitSet;
+
+import static com.gigamonkeys.go.GameContext.*;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * A frozen copy of a GameContext's perception buffer that any number
+ * of threads can run critters against at once. Snapshots are made by
+ * GameContext.publish() and are owned by the GameContext, which
+ * alternates between two of them so publishing doesn't allocate.
+ *
+ * Gradients that weren't already up to date when the snapshot was
+ * published are filled in, one at a time, the first time a critter
+ * asks for them. Each snapshot keeps its own lazy gradients, which
+ * catch up with the stones when it's published, so filling them in
+ * never touches the GameContext and the game can move on while
+ * critters are still running against the snapshot.
+ */
+public final class ContextSnapshot implements Perception {
+
+    public final int size;
+    public final Topology topology;
+
+    /**
+     * Laid out like GameContext.getPerception(). Read only. Call
+     * updateGradient() before looking at a gradient slot.
+     */
+    public final int[] perception;
+
+    private final LazyGradients mineGradient;
+    private final LazyGradients theirsGradient;
+    private final LazyGradients emptyGradient;
+    private int move = -1;
+
+    // Bits, by slot, of the gradient slots already filled in.
+    private volatile int ready = 0;
+
+    ContextSnapshot(GameContext context) {
+        this.size           = context.size;
+        this.topology       = context.topology;
+        this.perception     = new int[topology.positions * STRIDE];
+        this.mineGradient   = new LazyGradients(size, new BitSet(topology.positions));
+        this.theirsGradient = new LazyGradients(size, new BitSet(topology.positions));
+        this.emptyGradient  = new LazyGradients(size, new BitSet(topology.positions));
+    }
+
+    /**
+     * The number of moves that had been played (net of undos) when
+     * this snapshot was published.
+     */
+    public int move() { return move; }
+
+    /**
+     * Make sure the given gradient slot is filled in. Safe to call
+     * from any thread.
+     */
+    public void updateGradient(int slot) {
+        if ((ready & (1 << slot)) == 0) {
+            synchronized (this) {
+                if ((ready & (1 << slot)) == 0) {
+                    int[] values = gradient(slot).toArray();
+                    for (int p = 0; p < values.length; p++) {
+                        perception[p * STRIDE + slot] = values[p];
+                    }
+                    ready |= 1 << slot;
+                }
+            }
+        }
+    }
+
+    private LazyGradients gradient(int slot) {
+        switch (slot) {
+        case MINE_GRADIENT_SLOT:   return mineGradient;
+        case THEIRS_GRADIENT_SLOT: return theirsGradient;
+        case EMPTY_GRADIENT_SLOT:  return emptyGradient;
+        default:
+            throw new IllegalArgumentException("Not a gradient slot: " + slot);
+        }
+    }
+
+    /*
+     * Called by the GameContext on the game thread when nothing is
+     * running against this snapshot.
+     */
+    void copy(int[] from, int move, int ready, BitSet mine, BitSet theirs, BitSet empty) {
+        System.arraycopy(from, 0, perception, 0, perception.length);
+        mineGradient.sync(mine);
+        theirsGradient.sync(theirs);
+        emptyGradient.sync(empty);
+        this.move  = move;
+        this.ready = ready;
+    }
+}
@@ -1,5 +1,7 @@
 package com.gigamonkeys.go;
 
+import java.util.Arrays;
+
 /*
  * Copyright (c) 2013 Peter Seibel
  */
@@ -13,28 +15,126 @@ package com.gigamonkeys.go;
  */
 public class Critter {
 
+    // How many memo tables to keep, i.e. how many different VM
+    // configurations and board sizes a critter can be run with
+    // before it starts forgetting.
+    private final static int MEMOS = 4;
+
     private final byte[] genes;
-    private final Op code;
+    private final Program program;
+    private Program unoptimized = null;
+    private Program verified = null;
+    private int verifiedStackDepth;
+    private int verifiedCallstackDepth;
+    private CompiledProgram compiled = null;
+    private final Memo[] memos = new Memo[MEMOS];
+    private int nextMemo = 0;
 
     private int direction = 0;
     private int position = 0;
 
 
     public Critter(byte[] genes) {
-        this.genes = genes;
-        this.code  = VM.compile(genes).get(0);
+        this(genes, Program.compile(genes));
+    }
+
+    Critter(byte[] genes, Program program) {
+        this.genes   = genes;
+        this.program = program;
     }
 
+    /**
+     * Put the critter at position facing in direction, which must be
+     * 0-3: north, east, south, or west.
+     */
     public void position(int position, int direction) {
+        if ((direction & ~3) != 0) {
+            throw new IllegalArgumentException("Direction must be 0-3: " + direction);
+        }
         this.position = position;
         this.direction = direction;
     }
 
-    public Op getCode() { return code; }
+    public Program getProgram() { return program; }
+
+    /*
+     * The program op for op as in the genes, for profiling.
+     */
+    Program unoptimized() {
+        if (unoptimized == null) unoptimized = Program.unoptimized(genes);
+        return unoptimized;
+    }
+
+    /*
+     * The program as verified for the given stack sizes. We hang on to
+     * the last one since a critter is almost always run by VMs with
+     * the same sizes. Verifying for new sizes throws away any compiled
+     * code since it was compiled from the old one.
+     */
+    Program verified(int stackDepth, int callstackDepth) {
+        if (verified == null || stackDepth != verifiedStackDepth || callstackDepth != verifiedCallstackDepth) {
+            verified               = Verifier.verify(program, stackDepth, callstackDepth);
+            verifiedStackDepth     = stackDepth;
+            verifiedCallstackDepth = callstackDepth;
+            compiled               = null;
+        }
+        return verified;
+    }
+
+    /*
+     * Where the critter ends up from each start, (position << 2) |
+     * direction, encoded the same way, or -1 if we don't know yet.
+     * Only meaningful if the program is memoizable. The results
+     * depend on the VM's sizes and cycle limit and on the board size,
+     * i.e. the step table, so we keep a table for each of the last
+     * few combinations. That way VMs that are set up the same share
+     * results and a critter run alternately by differently sized VMs
+     * doesn't have to start over every time.
+     */
+    int[] memo(int stackDepth, int callstackDepth, int memorySize, int maxCycles, int[] step) {
+        for (Memo memo: memos) {
+            if (memo != null && memo.matches(stackDepth, callstackDepth, memorySize, maxCycles, step)) {
+                return memo.results;
+            }
+        }
+        Memo memo       = new Memo(stackDepth, callstackDepth, memorySize, maxCycles, step);
+        memos[nextMemo] = memo;
+        nextMemo        = (nextMemo + 1) % MEMOS;
+        return memo.results;
+    }
+
+    CompiledProgram getCompiled() { return compiled; }
+
+    void setCompiled(CompiledProgram compiled) { this.compiled = compiled; }
 
     public int getDirection() { return direction; }
 
     public int getPosition() { return position; }
 
+    /*
+     * One memo table and what it was filled in for.
+     */
+    private static class Memo {
+        final int stackDepth;
+        final int callstackDepth;
+        final int memorySize;
+        final int maxCycles;
+        final int[] step;
+        final int[] results;
+
+        Memo(int stackDepth, int callstackDepth, int memorySize, int maxCycles, int[] step) {
+            this.stackDepth     = stackDepth;
+            this.callstackDepth = callstackDepth;
+            this.memorySize     = memorySize;
+            this.maxCycles      = maxCycles;
+            this.step           = step;
+            this.results        = new int[step.length];
+            Arrays.fill(results, -1);
+        }
 
+        boolean matches(int stackDepth, int callstackDepth, int memorySize, int maxCycles, int[] step) {
+            return stackDepth == this.stackDepth && callstackDepth == this.callstackDepth &&
+                memorySize == this.memorySize && maxCycles == this.maxCycles && step == this.step;
+        }
+    }
 }
@@ -0,0 +1,38 @@
+package com.gigamonkeys.go;
+
+import java.util.BitSet;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * The part of a Board that knows how stones connect into groups:
+ * which groups a move would capture and whether the stone played
+ * would have a liberty. The Board itself takes care of occupancy,
+ * ko, the move journal, and listeners, and keeps its engine in step
+ * by calling place and undo after updating its own BitSets.
+ */
+interface Engine {
+
+    /**
+     * Check a move by color at the empty point position without
+     * changing anything. Fills captured with the stones the move
+     * would capture and returns whether the new stone would have a
+     * liberty; false means the move is suicide.
+     */
+    public boolean evaluate(Color color, int position, BitSet captured);
+
+    /**
+     * A stone of the given color has been placed at position and the
+     * captured stones removed.
+     */
+    public void place(Color color, int position, BitSet captured);
+
+    /**
+     * The most recent move, by color at position, has been taken
+     * back and the stones it captured restored.
+     */
+    public void undo(Color color, int position, BitSet restored);
+
+}
@@ -0,0 +1,41 @@
+package com.gigamonkeys.go;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * The scratch arrays VM.execute needs to run a critter, kept around
+ * between runs so executing a critter doesn't allocate. The stacks
+ * never need clearing: the VM only ever reads slots below the stack
+ * pointer, all of which have been written during the current run,
+ * with the one exception of MUL reading stack[0] with an empty stack,
+ * so we just zero that. Memory can be read before it's written so it
+ * does need to start out zeroed, but only programs with a STORE can
+ * dirty it.
+ */
+final class Frame {
+
+    final int[] stack;
+    final int[] callstack;
+    final int[] memory;
+
+    private boolean memoryDirty = false;
+
+    Frame(int stackDepth, int callstackDepth, int memorySize) {
+        this.stack     = new int[stackDepth];
+        this.callstack = new int[callstackDepth];
+        this.memory    = new int[memorySize];
+    }
+
+    /**
+     * Get ready to run the given program.
+     */
+    void reset(Program program) {
+        if (stack.length > 0) stack[0] = 0;
+        if (memoryDirty) Arrays.fill(memory, 0);
+        memoryDirty = program.stores;
+    }
+}
@@ -1,5 +1,8 @@
 package com.gigamonkeys.go;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
 /*
  * Copyright (c) 2013 Peter Seibel
  */
@@ -15,10 +18,25 @@ public class Game implements Runnable {
     public final Player white;
     public final Board board;
 
+    private final GameRecordWriter recorder;
+    private final String blackId;
+    private final String whiteId;
+
     public Game(Player black, Player white, Board board) {
-        this.black = black;
-        this.white = white;
-        this.board = board;
+        this(black, white, board, null, null, null);
+    }
+
+    /**
+     * Game whose moves will be appended to recorder, under the given
+     * player ids, as it is played.
+     */
+    public Game(Player black, Player white, Board board, GameRecordWriter recorder, String blackId, String whiteId) {
+        this.black    = black;
+        this.white    = white;
+        this.board    = board;
+        this.recorder = recorder;
+        this.blackId  = blackId;
+        this.whiteId  = whiteId;
         black.init(board, Color.BLACK);
         white.init(board, Color.WHITE);
     }
@@ -28,9 +46,28 @@ public class Game implements Runnable {
         Player toPlay = black;
         int passes = 0;
 
-        while (passes < 2) {
-            passes = toPlay.move() ? 0 : passes + 1;
-            toPlay = toPlay == black ? white : black;
+        try {
+            if (recorder != null) {
+                recorder.startGame(board.size, board.koRule, board.komi, blackId, whiteId);
+            }
+
+            while (passes < 2) {
+                boolean moved = toPlay.move();
+                if (recorder != null) {
+                    if (moved) {
+                        recorder.move(board.lastMove());
+                    } else {
+                        recorder.pass();
+                    }
+                }
+                passes = moved ? 0 : passes + 1;
+                toPlay = toPlay == black ? white : black;
+            }
+
+            if (recorder != null) recorder.endGame();
+
+        } catch (IOException ioe) {
+            throw new UncheckedIOException(ioe);
         }
 
         Score score = board.score();
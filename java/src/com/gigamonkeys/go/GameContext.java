@@ -11,33 +11,75 @@ import java.util.BitSet;
  * VM.run method. At the beginning of the game we make a GameContext
  * for each side. When running the critters to compute a move, the
  * GameContext is passed to the VM's execute() method which pulls out
- * the fields for fast access. Once the move is made, we
+ * the fields for fast access. Once the move is made, the board tells
+ * us, as a MoveListener, which stones came and went and we bring
+ * ourselves up to date, though the gradients are only worked out
+ * again when somebody actually looks at them.
+ *
+ * For the VM everything it can perceive about a point is also packed
+ * together in a single int array, STRIDE ints per position: a word
+ * of flags saying whether the point is mine, theirs, or empty
+ * followed by the four gradient values. The flags are kept up to
+ * date as stones come and go; each gradient slot is only filled in
+ * when updateGradient() is called for it since most critters never
+ * look at the gradients and those that do mostly look at only one.
+ *
+ * A GameContext is only ever touched by the game thread. To run
+ * critters on other threads, call publish() once per move and hand
+ * out the ContextSnapshot it returns.
  */
-public class GameContext implements BoardListener {
+public class GameContext implements MoveListener, Perception {
+
+    public final static int STRIDE                = 5;
+
+    public final static int FLAGS_SLOT            = 0;
+    public final static int MINE_GRADIENT_SLOT    = 1;
+    public final static int THEIRS_GRADIENT_SLOT  = 2;
+    public final static int EMPTY_GRADIENT_SLOT   = 3;
+    public final static int CORNER_GRADIENT_SLOT  = 4;
+
+    public final static int MINE_BIT              = 0;
+    public final static int THEIRS_BIT            = 1;
+    public final static int EMPTY_BIT             = 2;
 
     public final int size;
+    public final Topology topology;
     private final Color color;
     private final BitSet mine;
     private final BitSet theirs;
     private final BitSet empty;
-    private final Gradients mineGradient;
-    private final Gradients theirsGradient;
-    private final Gradients emptyGradient;
-    private final Gradients cornerGradient;
+    private final LazyGradients mineGradient;
+    private final LazyGradients theirsGradient;
+    private final LazyGradients emptyGradient;
+    private final int[] cornerGradient;
+    private final int[] perception;
+
+    private final ContextSnapshot[] snapshots;
+    private volatile ContextSnapshot published = null;
+    private int moves = 0;
+
+    private boolean mineStale   = true;
+    private boolean theirsStale = true;
+    private boolean emptyStale  = true;
 
     public GameContext(Board board, Color color) {
         this.size           = board.size;
+        this.topology       = board.topology;
         this.color          = color;
-        this.mine           = new BitSet(size);
-        this.theirs         = new BitSet(size);
-        this.empty          = makeEmptyBits(size);
+        this.mine           = new BitSet(board.positions);
+        this.theirs         = new BitSet(board.positions);
+        this.empty          = makeEmptyBits(board.positions);
 
-        this.mineGradient   = makeGradient(mine);
-        this.theirsGradient = makeGradient(theirs);
-        this.emptyGradient  = makeGradient(empty);
-        this.cornerGradient = makeCornerGradient();
+        this.mineGradient   = new LazyGradients(size, mine);
+        this.theirsGradient = new LazyGradients(size, theirs);
+        this.emptyGradient  = new LazyGradients(size, empty);
+        this.cornerGradient = Gradients.corners(size);
+        this.perception     = makePerception(board.positions);
+        this.snapshots      = new ContextSnapshot[] {
+            new ContextSnapshot(this), new ContextSnapshot(this)
+        };
 
-        board.addBoardListener(this);
+        board.addMoveListener(this);
     }
 
     public BitSet getMine() { return mine; }
@@ -46,54 +88,150 @@ public class GameContext implements BoardListener {
     public int[] getMineGradient() { return mineGradient.toArray(); }
     public int[] getTheirsGradient() { return theirsGradient.toArray(); }
     public int[] getEmptyGradinet() { return emptyGradient.toArray(); }
-    public int[] getCornerGradient() { return cornerGradient.toArray(); }
+    public int[] getCornerGradient() { return cornerGradient; }
+
+    /**
+     * The packed perception buffer. Should be treated as read only.
+     * The flags and corner gradient are always current; call
+     * updateGradient() before looking at one of the other gradients.
+     */
+    public int[] getPerception() { return perception; }
+
+    /**
+     * Bring one gradient slot of the perception buffer up to date,
+     * leaving the others alone.
+     */
+    public void updateGradient(int slot) {
+        switch (slot) {
+        case MINE_GRADIENT_SLOT:
+            if (mineStale) {
+                copyGradient(mineGradient.toArray(), slot);
+                mineStale = false;
+            }
+            break;
+        case THEIRS_GRADIENT_SLOT:
+            if (theirsStale) {
+                copyGradient(theirsGradient.toArray(), slot);
+                theirsStale = false;
+            }
+            break;
+        case EMPTY_GRADIENT_SLOT:
+            if (emptyStale) {
+                copyGradient(emptyGradient.toArray(), slot);
+                emptyStale = false;
+            }
+            break;
+        case CORNER_GRADIENT_SLOT:
+            break;
+        default:
+            throw new IllegalArgumentException("Not a gradient slot: " + slot);
+        }
+    }
+
+    /**
+     * Freeze the current state into a snapshot and publish it. Other
+     * threads can pick it up with getSnapshot() or be handed it
+     * directly. Gradients that aren't already up to date are left
+     * for the snapshot to work out, from its own copy of the stones,
+     * if a critter looks at them, so the game can go on while
+     * critters are running against it. But since the two snapshots
+     * are used alternately, all critters running against the
+     * snapshot from the move before last must have finished before
+     * calling this again.
+     */
+    public ContextSnapshot publish() {
+        ContextSnapshot snapshot = snapshots[0] == published ? snapshots[1] : snapshots[0];
+        snapshot.copy(perception, moves, current(), mine, theirs, empty);
+        // The write to a volatile field makes the copy visible to any
+        // thread that reads it from there.
+        published = snapshot;
+        return snapshot;
+    }
 
-    public void stoneAdded(BoardEvent be) {
-        int p = be.position;
-        if (be.color == color) {
+    /**
+     * The most recently published snapshot or null if publish() has
+     * never been called.
+     */
+    public ContextSnapshot getSnapshot() { return published; }
+
+    // Bits, by slot, of the gradient slots that are up to date.
+    private int current() {
+        return
+            (mineStale ? 0 : 1 << MINE_GRADIENT_SLOT) |
+            (theirsStale ? 0 : 1 << THEIRS_GRADIENT_SLOT) |
+            (emptyStale ? 0 : 1 << EMPTY_GRADIENT_SLOT) |
+            1 << CORNER_GRADIENT_SLOT;
+    }
+
+    public void movePlayed(int position, Color color, BitSet captured) {
+        moves++;
+        stoneAdded(position, color);
+        Color other = color == Color.BLACK ? Color.WHITE : Color.BLACK;
+        for (int i = captured.nextSetBit(0); i != -1; i = captured.nextSetBit(i + 1)) {
+            stoneRemoved(i, other);
+        }
+    }
+
+    public void moveUndone(int position, Color color, BitSet restored) {
+        moves--;
+        stoneRemoved(position, color);
+        Color other = color == Color.BLACK ? Color.WHITE : Color.BLACK;
+        for (int i = restored.nextSetBit(0); i != -1; i = restored.nextSetBit(i + 1)) {
+            stoneAdded(i, other);
+        }
+    }
+
+    private void stoneAdded(int p, Color color) {
+        if (color == this.color) {
             this.mine.set(p);
             this.mineGradient.set(p);
+            this.mineStale = true;
+            this.perception[p * STRIDE + FLAGS_SLOT] = 1 << MINE_BIT;
         } else {
             this.theirs.set(p);
             this.theirsGradient.set(p);
+            this.theirsStale = true;
+            this.perception[p * STRIDE + FLAGS_SLOT] = 1 << THEIRS_BIT;
         }
         this.empty.clear(p);
         this.emptyGradient.clear(p);
+        this.emptyStale = true;
     }
 
-    public void stoneRemoved(BoardEvent be) {
-        int p = be.position;
-        if (be.color == color) {
+    private void stoneRemoved(int p, Color color) {
+        if (color == this.color) {
             this.mine.clear(p);
             this.mineGradient.clear(p);
+            this.mineStale = true;
         } else {
             this.theirs.clear(p);
             this.theirsGradient.clear(p);
+            this.theirsStale = true;
         }
         this.empty.set(p);
         this.emptyGradient.set(p);
+        this.emptyStale = true;
+        this.perception[p * STRIDE + FLAGS_SLOT] = 1 << EMPTY_BIT;
     }
 
-    private BitSet makeEmptyBits(int size) {
-        BitSet bits = new BitSet(size);
-        bits.flip(0, size);
+    private BitSet makeEmptyBits(int positions) {
+        BitSet bits = new BitSet(positions);
+        bits.flip(0, positions);
         return bits;
     }
 
-    private Gradients makeGradient(BitSet bits) {
-        Gradients g = new Gradients(size);
-        for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
-            g.set(i);
+    private int[] makePerception(int positions) {
+        int[] packed = new int[positions * STRIDE];
+        for (int p = 0; p < positions; p++) {
+            packed[p * STRIDE + FLAGS_SLOT]           = 1 << EMPTY_BIT;
+            packed[p * STRIDE + CORNER_GRADIENT_SLOT] = cornerGradient[p];
         }
-        return g;
+        return packed;
     }
 
-    private Gradients makeCornerGradient() {
-        Gradients g = new Gradients(size);
-        g.set(0);
-        g.set(size - 1);
-        g.set(size * (size - 1));
-        g.set((size * size) - 1);
-        return g;
+    private void copyGradient(int[] values, int slot) {
+        for (int p = 0; p < values.length; p++) {
+            perception[p * STRIDE + slot] = values[p];
+        }
     }
 }
@@ -0,0 +1,151 @@
+package com.gigamonkeys.go;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Reader for files written by GameRecordWriter. Call nextGame() to
+ * read the header of each game in turn and then either nextMove()
+ * to step through the moves or replay() to play the rest of them on
+ * a fresh Board.
+ */
+public class GameRecordReader implements Closeable {
+
+    /**
+     * Returned by nextMove() after the last move of a game.
+     */
+    public final static int END_OF_GAME = -2;
+
+    private final InputStream in;
+    private boolean inGame = false;
+
+    private int size;
+    private KoRule koRule;
+    private double komi;
+    private String blackId;
+    private String whiteId;
+    private int moves;
+
+    public GameRecordReader(InputStream in) throws IOException {
+        this.in = new BufferedInputStream(in, 1 << 16);
+        for (byte b: GameRecordWriter.MAGIC) {
+            if (this.in.read() != b) throw new IOException("Not a game record file.");
+        }
+        int version = this.in.read();
+        if (version != GameRecordWriter.VERSION) {
+            throw new IOException("Unsupported game record version: " + version);
+        }
+    }
+
+    /**
+     * Read the header of the next game, skipping any moves left in
+     * the current one. Returns false at the end of the file.
+     */
+    public boolean nextGame() throws IOException {
+        while (inGame) nextMove();
+
+        int first = in.read();
+        if (first == -1) return false;
+
+        size    = readVarint(first);
+        koRule  = KoRule.values()[readVarint(read())];
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits |= (long)read() << (8 * i);
+        }
+        komi    = Double.longBitsToDouble(bits);
+        blackId = readString();
+        whiteId = readString();
+        moves   = 0;
+        inGame  = true;
+        return true;
+    }
+
+    /**
+     * The next move of the current game: a position, Game.PASS, or
+     * END_OF_GAME. Black plays the first move and the players
+     * alternate, passes included.
+     */
+    public int nextMove() throws IOException {
+        if (!inGame) return END_OF_GAME;
+        int code = readVarint(read());
+        switch (code) {
+        case GameRecordWriter.END:
+            inGame = false;
+            return END_OF_GAME;
+        case GameRecordWriter.PASS:
+            moves++;
+            return Game.PASS;
+        default:
+            moves++;
+            return code - 2;
+        }
+    }
+
+    /**
+     * Color to play the next move returned by nextMove().
+     */
+    public Color toPlay() {
+        return moves % 2 == 0 ? Color.BLACK : Color.WHITE;
+    }
+
+    /**
+     * Play the rest of the current game on a new Board and return it.
+     */
+    public Board replay() throws IOException {
+        Board board = new Board(size, komi, koRule);
+        while (true) {
+            Color color = toPlay();
+            int move    = nextMove();
+            if (move == END_OF_GAME) return board;
+            if (move != Game.PASS) board.placeStone(color, move);
+        }
+    }
+
+    public int getSize() { return size; }
+
+    public KoRule getKoRule() { return koRule; }
+
+    public double getKomi() { return komi; }
+
+    public String getBlackId() { return blackId; }
+
+    public String getWhiteId() { return whiteId; }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private int read() throws IOException {
+        int b = in.read();
+        if (b == -1) throw new EOFException("Truncated game record.");
+        return b;
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[readVarint(read())];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)read();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readVarint(int b) throws IOException {
+        int value = b & 0x7f;
+        int shift = 7;
+        while ((b & 0x80) != 0) {
+            b = read();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,95 @@
+package com.gigamonkeys.go;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Append-only writer for the compact game record format. A file is
+ * the four bytes "GOGR" and a version byte followed by any number of
+ * games. Each game is a header (board size, ko rule, komi, and the
+ * ids of the black and white players) and then the moves, black
+ * first and alternating, each a single varint: 0 marks the end of
+ * the game, 1 a pass, and anything else a stone at position + 2.
+ * Varints are little-endian base 128 so any position on a 19x19
+ * board takes at most two bytes and most games need no snapshots of
+ * the board at all to be replayed.
+ */
+public class GameRecordWriter implements Closeable {
+
+    final static byte[] MAGIC = { 'G', 'O', 'G', 'R' };
+    final static int VERSION  = 1;
+
+    final static int END  = 0;
+    final static int PASS = 1;
+
+    private final OutputStream out;
+    private boolean inGame = false;
+
+    public GameRecordWriter(OutputStream out) throws IOException {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.out.write(MAGIC);
+        this.out.write(VERSION);
+    }
+
+    public void startGame(int size, KoRule koRule, double komi, String blackId, String whiteId) throws IOException {
+        if (inGame) throw new IllegalStateException("Previous game not ended.");
+        writeVarint(size);
+        writeVarint(koRule.ordinal());
+        long bits = Double.doubleToLongBits(komi);
+        for (int i = 0; i < 8; i++) {
+            out.write((int)(bits >>> (8 * i)));
+        }
+        writeString(blackId);
+        writeString(whiteId);
+        inGame = true;
+    }
+
+    public void move(int position) throws IOException {
+        checkInGame();
+        writeVarint(position + 2);
+    }
+
+    public void pass() throws IOException {
+        checkInGame();
+        writeVarint(PASS);
+    }
+
+    public void endGame() throws IOException {
+        checkInGame();
+        writeVarint(END);
+        inGame = false;
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        out.close();
+    }
+
+    private void checkInGame() {
+        if (!inGame) throw new IllegalStateException("No game started.");
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        out.write(bytes);
+    }
+
+    private void writeVarint(int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,129 @@
+package com.gigamonkeys.go;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * The amount a stone adds to the gradient at every offset from it,
+ * computed once per board size and truncation radius and shared by
+ * all the Gradients that use it. The kernel is laid out as a square
+ * of side 2 * size - 1 centered on the stone so the values for one
+ * row of the board are a contiguous run of the kernel, offset by the
+ * stone's column.
+ *
+ * With a truncation radius, every point farther than the radius
+ * from the stone gets the same value, far; the kernel holds the
+ * difference from far and is zero beyond the radius so only the
+ * points near the stone need touching.
+ */
+final class GradientKernel {
+
+    private static final Map<Long, GradientKernel> cache = new HashMap<Long, GradientKernel>();
+
+    final int size;
+    final int width;
+    final int radius;
+    final int far;
+    final int[] values;
+
+    /**
+     * The complete gradient of the four corners, which never changes.
+     */
+    final int[] corner;
+
+    /**
+     * The sum of the kernel, less far, centered on every point of the
+     * board, i.e. the gradient of a full board apart from the
+     * constant positions * far.
+     */
+    final int[] full;
+
+    private GradientKernel(int size, int radius) {
+        int maxDistance = 2 * (size - 1);
+
+        this.size   = size;
+        this.width  = 2 * size - 1;
+        this.radius = Math.min(radius, maxDistance);
+        this.values = new int[width * width];
+
+        // We want a coefficent such that the difference in the score
+        // between the farthest away point and the second farthest
+        // away point will be one, regardless of the size of the
+        // board. Basically, given the score function below, let m be
+        // the the maximum distance (a function of the board
+        // size). Then the score of the farthest away point is:
+        //
+        //   x / (m^2 + 1)
+        //
+        // and the score of the next farthest away point is:
+        //
+        //   x / ((m - 1)^2 + 1)
+        //
+        // So set:
+        //
+        //   (x / (m^2 + 1)) + 1 = x / ((m - 1)^2 + 1)
+        //
+        // And solve for x. Use that as the coefficient.
+
+        int m = maxDistance;
+        int coefficient = (m * (m * (m * (m - 2) + 3) - 2) + 2) / (2 * m - 1);
+
+        int[] byDistance = new int[maxDistance + 2];
+        for (int d = 0; d < byDistance.length; d++) {
+            byDistance[d] = coefficient / (d * d + 1);
+        }
+
+        this.far = this.radius < maxDistance ? byDistance[this.radius + 1] : 0;
+
+        for (int dy = -(size - 1); dy < size; dy++) {
+            for (int dx = -(size - 1); dx < size; dx++) {
+                int d = Math.abs(dx) + Math.abs(dy);
+                values[(dy + size - 1) * width + dx + size - 1] = d <= this.radius ? byDistance[d] - far : 0;
+            }
+        }
+
+        int positions = size * size;
+
+        this.full = new int[positions];
+        for (int i = 0; i < positions; i++) {
+            for (int p = 0; p < positions; p++) {
+                int d = Math.abs(i % size - p % size) + Math.abs(i / size - p / size);
+                full[i] += d <= this.radius ? byDistance[d] - far : 0;
+            }
+        }
+
+        this.corner = new int[positions];
+        int[] corners = { 0, size - 1, size * (size - 1), size * size - 1 };
+        for (int c: corners) {
+            int cx = c % size;
+            int cy = c / size;
+            for (int i = 0; i < positions; i++) {
+                int d = Math.abs(cx - i % size) + Math.abs(cy - i / size);
+                corner[i] += byDistance[d];
+            }
+        }
+    }
+
+    /**
+     * Shared kernel for the given size. A radius at least as big as
+     * the board's diameter means no truncation.
+     */
+    static synchronized GradientKernel forSize(int size, int radius) {
+        radius = Math.min(radius, 2 * (size - 1));
+        Long key = ((long)size << 32) | radius;
+        GradientKernel kernel = cache.get(key);
+        if (kernel == null) {
+            kernel = new GradientKernel(size, radius);
+            cache.put(key, kernel);
+        }
+        return kernel;
+    }
+
+    static GradientKernel forSize(int size) {
+        return forSize(size, Integer.MAX_VALUE);
+    }
+}
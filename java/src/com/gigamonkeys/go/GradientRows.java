@@ -0,0 +1,37 @@
+package com.gigamonkeys.go;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * The inner loop of updating Gradients: adding or subtracting a run
+ * of the kernel to a run of the values, one board row at a time.
+ * This is the plain scalar version; VectorGradientRows does the same
+ * thing with the incubating Vector API when it's available.
+ */
+class GradientRows {
+
+    void add(int[] values, int v, int[] kernel, int k, int length) {
+        for (int i = 0; i < length; i++) values[v + i] += kernel[k + i];
+    }
+
+    void subtract(int[] values, int v, int[] kernel, int k, int length) {
+        for (int i = 0; i < length; i++) values[v + i] -= kernel[k + i];
+    }
+
+    /**
+     * The vector implementation if the jdk.incubator.vector module
+     * has been added to the VM (with --add-modules) and the scalar
+     * one otherwise. We load the vector class reflectively so this
+     * class can still be loaded without it.
+     */
+    static GradientRows forPlatform() {
+        try {
+            Class<?> c = Class.forName("com.gigamonkeys.go.VectorGradientRows");
+            return (GradientRows)c.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new GradientRows();
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package com.gigamonkeys.go;
 
-import static java.lang.Math.abs;
-import static java.lang.Math.pow;
-import static java.lang.Math.round;
-import static java.lang.Math.log;
+import java.util.Arrays;
+import java.util.BitSet;
 
 /*
  * Copyright (c) 2013 Peter Seibel
@@ -17,59 +15,145 @@ import static java.lang.Math.log;
  * critters could compare the gradient scores of neighboring points
  * and head toward (or away from) concentrations of their side's
  * stones, the other side's stones, or empty points.
+ *
+ * The amounts come from a GradientKernel shared by all Gradients of
+ * the same size. Optionally the kernel can be truncated at a radius,
+ * in which case points farther away than that all get the same
+ * amount; rather than touching them all, we keep that part as a
+ * single offset and only fold it into the values when they are
+ * asked for.
  */
 public class Gradients {
 
+    private static final GradientRows platformRows = GradientRows.forPlatform();
+
     public final int size;
     public final int[] values;
-    private final int coefficient;
+    private final GradientKernel kernel;
+    private final GradientRows rows;
+    private final int[] column;
+    private final int[] row;
+    private int offset = 0;
 
     public Gradients(int size) {
+        this(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gradients whose points farther than radius from a stone all
+     * get the same contribution from it.
+     */
+    public Gradients(int size, int radius) {
+        this(size, radius, platformRows);
+    }
+
+    Gradients(int size, int radius, GradientRows rows) {
+        Topology topology = Topology.forSize(size);
         this.size   = size;
         this.values = new int[size * size];
-
-        // We want a coefficent such that the difference in the score
-        // between the farthest away point and the second farthest
-        // away point will be one, regardless of the size of the
-        // board. Basically, given the score function below, let m be
-        // the the maximum distance (a function of the board
-        // size). Then the score of the farthest away point is:
-        //
-        //   x / (m^2 + 1)
-        //
-        // and the score of the next farthest away point is:
-        //
-        //   x / ((m - 1)^2 + 1)
-        //
-        // So set:
-        //
-        //   (x / (m^2 + 1)) + 1 = x / ((m - 1)^2 + 1)
-        //
-        // And solve for x. Use that as the coefficient.
-
-        int m = (size - 1) * 2;
-        this.coefficient = (m * (m * (m * (m - 2) + 3) - 2) + 2) / (2 * m - 1);
+        this.kernel = GradientKernel.forSize(size, radius);
+        this.rows   = rows;
+        this.column = topology.column;
+        this.row    = topology.row;
     }
 
     public void set(int p) {
-        for (int i = 0; i < values.length; i++) {
-            values[i] += score(p, i);
-        }
+        add(p, 1);
     }
 
     public void clear(int p) {
-        for (int i = 0; i < values.length; i++) {
-            values[i] -= score(p, i);
+        add(p, -1);
+    }
+
+    /**
+     * Set all the points in added and clear all the points in
+     * removed in one go.
+     */
+    public void apply(BitSet added, BitSet removed) {
+        for (int p = removed.nextSetBit(0); p >= 0; p = removed.nextSetBit(p + 1)) {
+            add(p, -1);
+        }
+        for (int p = added.nextSetBit(0); p >= 0; p = added.nextSetBit(p + 1)) {
+            add(p, 1);
+        }
+    }
+
+    /**
+     * Like apply(added, removed) where current is the set of points
+     * that will be set afterwards. When that is cheaper than the
+     * individual updates, say after a big capture, we instead rebuild
+     * the values from scratch: either from nothing by setting every
+     * point in current or from the full board gradient by clearing
+     * every point not in current, whichever touches fewer points. So
+     * no batch costs more than half a board's worth of stones.
+     */
+    public void apply(BitSet added, BitSet removed, BitSet current) {
+        int positions = values.length;
+        int changes   = added.cardinality() + removed.cardinality();
+        int stones    = current.cardinality();
+
+        // Rebuilding costs a pass over the values on top of the stones.
+        if (changes <= Math.min(stones, positions - stones) + 1) {
+            apply(added, removed);
+        } else if (stones <= positions - stones) {
+            Arrays.fill(values, 0);
+            offset = 0;
+            for (int p = current.nextSetBit(0); p >= 0; p = current.nextSetBit(p + 1)) {
+                add(p, 1);
+            }
+        } else {
+            System.arraycopy(kernel.full, 0, values, 0, positions);
+            offset = positions * kernel.far;
+            for (int p = current.nextClearBit(0); p < positions; p = current.nextClearBit(p + 1)) {
+                add(p, -1);
+            }
         }
     }
 
     public int[] toArray() {
         // Should be treated as read only.
+        if (offset != 0) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] += offset;
+            }
+            offset = 0;
+        }
         return values;
     }
 
-    private int score(int p, int i) {
-        int d = abs((p % size) - (i % size)) + abs((p / size) - (i / size));
-        return round(coefficient / (d * d + 1));
+    /**
+     * The gradient of the four corners of a board of the given size,
+     * shared and never changing. Should be treated as read only.
+     */
+    public static int[] corners(int size) {
+        return GradientKernel.forSize(size).corner;
+    }
+
+    /*
+     * Add the kernel centered on p, multiplied by sign, to the values
+     * within the kernel's radius of p.
+     */
+    private void add(int p, int sign) {
+        int[] k    = kernel.values;
+        int width  = kernel.width;
+        int radius = kernel.radius;
+        int px     = column[p];
+        int py     = row[p];
+        int top    = Math.max(py - radius, 0);
+        int bottom = Math.min(py + radius, size - 1);
+        int left   = Math.max(px - radius, 0);
+        int right  = Math.min(px + radius, size - 1);
+        int length = right - left + 1;
+
+        for (int r = top; r <= bottom; r++) {
+            int v = r * size + left;
+            int kr = (r - py + size - 1) * width + (size - 1 - px) + left;
+            if (sign > 0) {
+                rows.add(values, v, k, kr, length);
+            } else {
+                rows.subtract(values, v, k, kr, length);
+            }
+        }
+        offset += sign * kernel.far;
     }
 }
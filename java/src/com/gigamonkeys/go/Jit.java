@@ -0,0 +1,752 @@
+package com.gigamonkeys.go;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.gigamonkeys.go.GameContext.*;
+import static com.gigamonkeys.go.VM.*;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Compile a Program into a real JVM class so HotSpot can turn it into
+ * native code. Each op becomes a straight run of bytecode with the
+ * VM's registers (tos, sp, position, etc.) in locals, branches become
+ * JVM branches, and RET becomes a switch over the ops following the
+ * CALLs, plus a check for NOWHERE if any CALL pushes it. The generated code mirrors the cases in VM.execute exactly.
+ * We only compile verified programs (see Verifier), which stop
+ * explicitly rather than running off the ends of the stacks, so
+ * unlike the interpreter there's no handler for
+ * ArrayIndexOutOfBoundsException.
+ *
+ * We write the class file ourselves rather than pull in a bytecode
+ * library. It's a version 49 class file, which means the verifier
+ * infers types itself and we don't have to compute stack map frames.
+ * The class is defined as a hidden class so it can be unloaded once
+ * the critter is garbage.
+ */
+final class Jit {
+
+    // Locals of the generated run method. 0 is this and 1 through 10
+    // are the arguments in the order of CompiledProgram.run.
+    private final static int POS        = 1;
+    private final static int DIR        = 2;
+    private final static int STEP       = 3;
+    private final static int PERCEPTION = 4;
+    private final static int SOURCE     = 5;
+    private final static int STACK      = 6;
+    private final static int CALLSTACK  = 7;
+    private final static int MEMORY     = 8;
+    private final static int RANDOM     = 9;
+    private final static int LIMIT      = 10;
+    private final static int TOS        = 11;
+    private final static int SP         = 12;
+    private final static int CSP        = 13;
+    private final static int CYCLES     = 14;
+    private final static int TMP        = 15;
+    private final static int MINE_READY   = 16;
+    private final static int THEIRS_READY = 17;
+    private final static int EMPTY_READY  = 18;
+    private final static int LOCALS       = 19;
+
+    // Branch offsets are 16 bits so we give up on anything bigger.
+    private final static int MAX_CODE = 32767;
+
+    private final static String RUN_DESCRIPTOR =
+        "(II[I[ILcom/gigamonkeys/go/Perception;[I[I[ILjava/util/Random;I)J";
+
+    private Jit() {}
+
+    /**
+     * Compile the program, returning null if it's too big to compile.
+     */
+    static CompiledProgram compile(Program program) {
+        byte[] bytes = classFile(program);
+        if (bytes == null) return null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return (CompiledProgram)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    static byte[] classFile(Program program) {
+        ConstantPool pool = new ConstantPool();
+        Code run          = runMethod(program, pool);
+
+        if (run == null) return null;
+
+        Code init = new Code();
+        init.op(0x2a); // aload_0
+        init.op(0xb7); init.u2(pool.method("java/lang/Object", "<init>", "()V")); // invokespecial
+        init.op(0xb1); // return
+
+        int thisClass  = pool.classRef("com/gigamonkeys/go/JitProgram");
+        int superClass = pool.classRef("java/lang/Object");
+        int iface      = pool.classRef("com/gigamonkeys/go/CompiledProgram");
+        int codeName   = pool.utf8("Code");
+        int initName   = pool.utf8("<init>");
+        int initDesc   = pool.utf8("()V");
+        int runName    = pool.utf8("run");
+        int runDesc    = pool.utf8(RUN_DESCRIPTOR);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out        = new DataOutputStream(bytes);
+            out.writeInt(0xcafebabe);
+            out.writeShort(0);
+            out.writeShort(49);
+            pool.write(out);
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+            writeMethod(out, initName, initDesc, codeName, init, 1, 1);
+            writeMethod(out, runName, runDesc, codeName, run, 6, LOCALS);
+            out.writeShort(0); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException ioe) {
+            throw new AssertionError(ioe);
+        }
+    }
+
+    private static void writeMethod(DataOutputStream out, int name, int descriptor,
+                                    int codeName, Code code, int maxStack, int maxLocals)
+        throws IOException
+    {
+        byte[] bytecodes = code.toByteArray();
+
+        out.writeShort(0x0001); // public
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(2 + 2 + 4 + bytecodes.length + 2 + 2);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(bytecodes.length);
+        out.write(bytecodes);
+        out.writeShort(0); // exception handlers
+        out.writeShort(0); // attributes
+    }
+
+    private static Code runMethod(Program program, ConstantPool pool) {
+        byte[] opcodes = program.opcodes;
+        int[] operands = program.operands;
+        int[] targets  = program.targets;
+        int[] costs    = program.costs;
+        int n          = opcodes.length;
+
+        Code code   = new Code();
+        int[] ops   = code.labels(n);
+        int exit    = code.label();
+
+        // The ops that RET can return to.
+        List<Integer> returns = new ArrayList<Integer>();
+        boolean nowhere       = false;
+        for (int i = 0; i < n; i++) {
+            if (opcodes[i] == CALL) returns.add(i + 1);
+            nowhere |= opcodes[i] == CALL && operands[i] == NOWHERE;
+        }
+
+        for (int local: new int[] { TOS, SP, CSP, CYCLES, TMP, MINE_READY, THEIRS_READY, EMPTY_READY }) {
+            code.op(0x03); code.store(local); // iconst_0
+        }
+
+        for (int i = 0; i < n; i++) {
+            code.mark(ops[i]);
+
+            // if ((cycles += cost) > limit) break;
+            code.iinc(CYCLES, costs[i]);
+            code.load(CYCLES);
+            code.load(LIMIT);
+            code.op(0xa3); code.jump(exit); // if_icmpgt
+
+            switch (opcodes[i]) {
+            case NOP:
+                break;
+            case LOAD:
+                address(code, exit);
+                code.aload(MEMORY); code.load(TMP); code.op(0x2e); code.store(TOS);
+                break;
+            case STORE:
+                address(code, exit);
+                code.aload(MEMORY); code.load(TMP);
+                pop(code); code.op(0x4f); // iastore
+                pop(code); code.store(TOS);
+                break;
+            case ADD:
+                binary(code, 0x60);
+                break;
+            case SUB:
+                binary(code, 0x64);
+                break;
+            case MUL:
+                // Yes, -sp. Faithful to the interpreter.
+                code.load(TOS); code.aload(STACK); code.load(SP); code.op(0x74); code.op(0x2e); // ineg iaload
+                code.op(0x68); code.store(TOS);
+                break;
+            case DIV:
+                safeDivide(code, 0x6c);
+                break;
+            case MOD:
+                safeDivide(code, 0x70);
+                break;
+            case INC:
+                code.iinc(TOS, 1);
+                break;
+            case DEC:
+                code.iinc(TOS, -1);
+                break;
+            case RAND:
+                push(code);
+                code.aload(RANDOM);
+                code.op(0xb6); code.u2(pool.method("java/util/Random", "nextInt", "()I")); // invokevirtual
+                code.store(TOS);
+                break;
+            case FORWARD:
+                code.aload(STEP); code.load(POS); code.constant(2); code.op(0x78); // ishl
+                code.load(DIR); code.op(0x80); code.op(0x2e); code.store(POS); // ior iaload
+                break;
+            case TURN_AROUND:
+                turn(code, 2);
+                break;
+            case TURN_RIGHT:
+                turn(code, 1);
+                break;
+            case TURN_LEFT:
+                turn(code, 3);
+                break;
+            case POSITION:
+                push(code);
+                code.load(POS); code.store(TOS);
+                break;
+            case BOOLE_1:
+                code.iinc(SP, -1);
+                break;
+            case BOOLE_2:
+                pop(code); code.store(TOS);
+                break;
+            case BOOLE_ANDC1:
+                code.load(TOS); not(code); pop(code); code.op(0x7e); code.store(TOS);
+                break;
+            case BOOLE_ANDC2:
+                code.load(TOS); pop(code); not(code); code.op(0x7e); code.store(TOS);
+                break;
+            case BOOLE_AND:
+                binary(code, 0x7e);
+                break;
+            case BOOLE_C1:
+                code.load(TOS); not(code); code.store(TOS); code.iinc(SP, -1);
+                break;
+            case BOOLE_C2:
+                pop(code); not(code); code.store(TOS);
+                break;
+            case BOOLE_CLR:
+                code.constant(0); code.store(TOS); code.iinc(SP, -1);
+                break;
+            case BOOLE_EQV:
+                code.load(TOS); pop(code); code.op(0x82); not(code); code.store(TOS);
+                break;
+            case BOOLE_IOR:
+                binary(code, 0x80);
+                break;
+            case BOOLE_NAND:
+                code.load(TOS); pop(code); code.op(0x7e); not(code); code.store(TOS);
+                break;
+            case BOOLE_NOR:
+                code.load(TOS); pop(code); code.op(0x80); not(code); code.store(TOS);
+                break;
+            case BOOLE_ORC1:
+                code.load(TOS); not(code); pop(code); code.op(0x80); code.store(TOS);
+                break;
+            case BOOLE_ORC2:
+                code.load(TOS); pop(code); not(code); code.op(0x80); code.store(TOS);
+                break;
+            case BOOLE_SET:
+                code.constant(-1); code.store(TOS); code.iinc(SP, -1);
+                break;
+            case BOOLE_XOR:
+                binary(code, 0x82);
+                break;
+            case NOT:
+                code.load(TOS); not(code); code.store(TOS);
+                break;
+            case POP:
+                pop(code); code.store(TOS);
+                break;
+            case SWAP:
+                code.load(TOS); code.store(TMP);
+                stackAt(code, 1); code.op(0x2e); code.store(TOS);
+                stackAt(code, 1); code.load(TMP); code.op(0x4f);
+                break;
+            case ROT:
+                stackAt(code, 3); code.op(0x2e); code.store(TMP);
+                stackAt(code, 3); stackAt(code, 2); code.op(0x2e); code.op(0x4f);
+                stackAt(code, 1); code.load(TOS); code.op(0x4f);
+                code.load(TMP); code.store(TOS);
+                break;
+            case DUP:
+                push(code);
+                break;
+            case OVER:
+                push(code);
+                stackAt(code, 2); code.op(0x2e); code.store(TOS);
+                break;
+            case TUCK:
+                stackAt(code, 0); stackAt(code, 1); code.op(0x2e); code.op(0x4f);
+                stackAt(code, 1); code.load(TOS); code.op(0x4f);
+                code.iinc(SP, 1);
+                break;
+            case PUSH:
+                push(code);
+                code.constant(operands[i]); code.store(TOS);
+                break;
+            case IFZERO:
+                branch(code, 0x99, ops[targets[i]]); // ifeq
+                break;
+            case IFPOS:
+                branch(code, 0x9d, ops[targets[i]]); // ifgt
+                break;
+            case IFNEG:
+                branch(code, 0x9b, ops[targets[i]]); // iflt
+                break;
+            case IFNZERO:
+                branch(code, 0x9a, ops[targets[i]]); // ifne
+                break;
+            case IFNPOS:
+                branch(code, 0x9e, ops[targets[i]]); // ifle
+                break;
+            case IFNNEG:
+                branch(code, 0x9c, ops[targets[i]]); // ifge
+                break;
+            case GOTO:
+                code.op(0xa7); code.jump(ops[targets[i]]);
+                break;
+            case CALL:
+                code.aload(CALLSTACK); code.load(CSP);
+                code.constant(operands[i] == NOWHERE ? NOWHERE : i + 1); code.op(0x4f);
+                code.iinc(CSP, 1);
+                code.op(0xa7); code.jump(ops[targets[i]]);
+                break;
+            case RET:
+                code.aload(CALLSTACK); code.iinc(CSP, -1); code.load(CSP); code.op(0x2e);
+                if (nowhere) {
+                    // if (tmp == NOWHERE) go on to the next op.
+                    code.store(TMP);
+                    code.load(TMP); code.constant(NOWHERE); code.op(0x9f); code.jump(ops[i + 1]); // if_icmpeq
+                    code.load(TMP);
+                }
+                code.lookupswitch(returns, ops, exit);
+                break;
+            case STOP:
+                code.op(0xa7); code.jump(exit);
+                break;
+            case MINE:
+                flag(code, MINE_BIT);
+                break;
+            case THEIRS:
+                flag(code, THEIRS_BIT);
+                break;
+            case EMPTY:
+                flag(code, EMPTY_BIT);
+                break;
+            case MINE_GRADIENT:
+                gradient(code, pool, MINE_GRADIENT_SLOT, MINE_READY);
+                break;
+            case THEIR_GRADIENT:
+                gradient(code, pool, THEIRS_GRADIENT_SLOT, THEIRS_READY);
+                break;
+            case EMPTY_GRADIENT:
+                gradient(code, pool, EMPTY_GRADIENT_SLOT, EMPTY_READY);
+                break;
+            case CORNER_GRADIENT:
+                gradient(code, pool, CORNER_GRADIENT_SLOT, -1);
+                break;
+            case SKIP:
+                break;
+            case CHECK:
+                code.load(SP); code.constant(targets[i]); code.op(0xa1); code.jump(exit); // if_icmplt
+                room(code, operands[i], exit);
+                break;
+            case PUSHK:
+                code.load(SP); code.op(0x9b); code.jump(exit); // iflt
+                room(code, targets[i], exit);
+                push(code);
+                code.constant(operands[i]); code.store(TOS);
+                break;
+            case ADDK:
+                code.load(SP); code.op(0x9b); code.jump(exit);
+                room(code, targets[i], exit);
+                code.load(TOS); code.constant(operands[i]); code.op(0x60); code.store(TOS);
+                break;
+            case POSITION_MODK:
+                code.load(SP); code.op(0x9b); code.jump(exit);
+                room(code, targets[i], exit);
+                push(code);
+                positionModK(code, operands[i]);
+                break;
+            case DUP_IFZERO:
+                code.load(SP); code.op(0x9b); code.jump(exit);
+                room(code, 1, exit);
+                code.load(TOS); code.op(0x99); code.jump(ops[targets[i]]); // ifeq
+                break;
+            case DUP_IFNZERO:
+                code.load(SP); code.op(0x9b); code.jump(exit);
+                room(code, 1, exit);
+                code.load(TOS); code.op(0x9a); code.jump(ops[targets[i]]); // ifne
+                break;
+            case FLAG_IFZERO:
+                code.load(SP); code.op(0x9b); code.jump(exit);
+                room(code, 1, exit);
+                testFlag(code, operands[i]); code.op(0x99); code.jump(ops[targets[i]]);
+                break;
+            case FLAG_IFNZERO:
+                code.load(SP); code.op(0x9b); code.jump(exit);
+                room(code, 1, exit);
+                testFlag(code, operands[i]); code.op(0x9a); code.jump(ops[targets[i]]);
+                break;
+            case CALLCHECK:
+                code.load(CSP); code.constant(targets[i]); code.op(0xa1); code.jump(exit);
+                code.load(CSP); code.constant(operands[i]); code.op(0x60);
+                code.aload(CALLSTACK); code.op(0xbe);
+                code.op(0xa3); code.jump(exit);
+                break;
+            default:
+                throw new RuntimeException("Illegal opcode: " + opcodes[i]);
+            }
+        }
+
+        code.mark(exit);
+        code.load(POS); code.op(0x85); code.constant(32); code.op(0x79); // i2l lshl
+        code.load(DIR); code.op(0x85); code.constant(32); code.op(0x79);
+        code.constant(32); code.op(0x7d); code.op(0x81); code.op(0xad);      // lushr lor lreturn
+
+        return code.resolve() ? code : null;
+    }
+
+    // stack[--sp] left on the operand stack.
+    private static void pop(Code code) {
+        code.aload(STACK); code.iinc(SP, -1); code.load(SP); code.op(0x2e);
+    }
+
+    // stack[sp++] = tos;
+    private static void push(Code code) {
+        code.aload(STACK); code.load(SP); code.load(TOS); code.op(0x4f);
+        code.iinc(SP, 1);
+    }
+
+    // stack, sp - offset left on the operand stack.
+    private static void stackAt(Code code, int offset) {
+        code.aload(STACK); code.load(SP);
+        if (offset != 0) {
+            code.constant(offset); code.op(0x64);
+        }
+    }
+
+    // tmp = tos % memory.length; if (tmp < 0) break;
+    private static void address(Code code, int exit) {
+        code.load(TOS); code.aload(MEMORY); code.op(0xbe); code.op(0x70); code.store(TMP); // arraylength irem
+        code.load(TMP); code.op(0x9b); code.jump(exit); // iflt
+    }
+
+    // if (sp + values > stack.length) break;
+    private static void room(Code code, int values, int exit) {
+        code.load(SP); code.constant(values); code.op(0x60);
+        code.aload(STACK); code.op(0xbe);
+        code.op(0xa3); code.jump(exit); // if_icmpgt
+    }
+
+    private static void not(Code code) {
+        code.constant(-1); code.op(0x82); // ixor
+    }
+
+    // tos = tos <op> stack[--sp];
+    private static void binary(Code code, int op) {
+        code.load(TOS); pop(code); code.op(op); code.store(TOS);
+    }
+
+    // tmp = stack[--sp]; tos = tmp == 0 ? 0 : tos <op> tmp;
+    private static void safeDivide(Code code, int op) {
+        int nonZero = code.label();
+        int done    = code.label();
+        pop(code); code.store(TMP);
+        code.load(TMP); code.op(0x9a); code.jump(nonZero); // ifne
+        code.constant(0); code.store(TOS);
+        code.op(0xa7); code.jump(done);
+        code.mark(nonZero);
+        code.load(TOS); code.load(TMP); code.op(op); code.store(TOS);
+        code.mark(done);
+    }
+
+    private static void turn(Code code, int amount) {
+        code.load(DIR); code.constant(amount); code.op(0x60);
+        code.constant(4); code.op(0x70); code.store(DIR);
+    }
+
+    // Test tos, then pop, then branch on the result of the test.
+    private static void branch(Code code, int test, int target) {
+        code.load(TOS); code.store(TMP);
+        pop(code); code.store(TOS);
+        code.load(TMP); code.op(test); code.jump(target);
+    }
+
+    private static void perceive(Code code, int slot) {
+        code.aload(PERCEPTION); code.load(POS); code.constant(STRIDE); code.op(0x68); // imul
+        if (slot != 0) {
+            code.constant(slot); code.op(0x60);
+        }
+        code.op(0x2e);
+    }
+
+    private static void flag(Code code, int bit) {
+        push(code);
+        testFlag(code, bit);
+        code.store(TOS);
+    }
+
+    // The flag bit at position left on the operand stack.
+    private static void testFlag(Code code, int bit) {
+        perceive(code, FLAGS_SLOT);
+        code.constant(bit); code.op(0x7c); code.constant(1); code.op(0x7e); // iushr iand
+    }
+
+    // tos = position == 0 ? 0 : k % position;
+    private static void positionModK(Code code, int k) {
+        int nonZero = code.label();
+        int done    = code.label();
+        code.load(POS); code.op(0x9a); code.jump(nonZero); // ifne
+        code.constant(0); code.store(TOS);
+        code.op(0xa7); code.jump(done);
+        code.mark(nonZero);
+        code.constant(k); code.load(POS); code.op(0x70); code.store(TOS); // irem
+        code.mark(done);
+    }
+
+    // Read a gradient, first asking for it to be brought up to date
+    // unless the local ready says we already have or is -1, for the
+    // corner gradient which is always current.
+    private static void gradient(Code code, ConstantPool pool, int slot, int ready) {
+        push(code);
+        if (ready != -1) {
+            int done = code.label();
+            code.load(ready); code.op(0x9a); code.jump(done); // ifne
+            code.aload(SOURCE); code.constant(slot);
+            code.op(0xb9); code.u2(pool.interfaceMethod("com/gigamonkeys/go/Perception", "updateGradient", "(I)V"));
+            code.op(2); code.op(0); // invokeinterface count
+            code.constant(1); code.store(ready);
+            code.mark(done);
+        }
+        perceive(code, slot);
+        code.store(TOS);
+    }
+
+    /**
+     * Bytes of a method body plus enough bookkeeping to resolve
+     * forward jumps.
+     */
+    private static class Code {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final List<Integer> labels        = new ArrayList<Integer>();
+
+        // Pairs of (position of the offset, position of the instruction)
+        // and the label they refer to.
+        private final List<int[]> fixups = new ArrayList<int[]>();
+
+        private byte[] resolved;
+
+        int position() { return bytes.size(); }
+
+        int label() {
+            labels.add(-1);
+            return labels.size() - 1;
+        }
+
+        int[] labels(int n) {
+            int[] ls = new int[n];
+            for (int i = 0; i < n; i++) ls[i] = label();
+            return ls;
+        }
+
+        void mark(int label) { labels.set(label, position()); }
+
+        void op(int op) { bytes.write(op); }
+
+        void u2(int v) {
+            bytes.write(v >>> 8);
+            bytes.write(v);
+        }
+
+        void u4(int v) {
+            u2(v >>> 16);
+            u2(v & 0xffff);
+        }
+
+        void load(int local) { op(0x15); op(local); }  // iload
+
+        void store(int local) { op(0x36); op(local); } // istore
+
+        void aload(int local) { op(0x19); op(local); }
+
+        void iinc(int local, int amount) {
+            if (Byte.MIN_VALUE <= amount && amount <= Byte.MAX_VALUE) {
+                op(0x84); op(local); op(amount);
+            } else {
+                op(0xc4); op(0x84); u2(local); u2(amount); // wide iinc
+            }
+        }
+
+        void constant(int v) {
+            if (-1 <= v && v <= 5) {
+                op(0x03 + v); // iconst_<v>
+            } else if (Byte.MIN_VALUE <= v && v <= Byte.MAX_VALUE) {
+                op(0x10); op(v); // bipush
+            } else if (Short.MIN_VALUE <= v && v <= Short.MAX_VALUE) {
+                op(0x11); u2(v); // sipush
+            } else {
+                // Build it up from pieces rather than bother with
+                // integer constants in the constant pool.
+                constant(v >> 16); constant(16); op(0x78);         // ishl
+                constant((v >> 8) & 0xff); constant(8); op(0x78); op(0x80); // ior
+                constant(v & 0xff); op(0x80);
+            }
+        }
+
+        // Two byte offset to label from the instruction just written.
+        void jump(int label) {
+            int instruction = position() - 1;
+            fixups.add(new int[] { position(), instruction, label, 2 });
+            u2(0);
+        }
+
+        void lookupswitch(List<Integer> keys, int[] ops, int defaultLabel) {
+            int instruction = position();
+            op(0xab);
+            while (position() % 4 != 0) op(0);
+            fixups.add(new int[] { position(), instruction, defaultLabel, 4 });
+            u4(0);
+            u4(keys.size());
+            for (int key: keys) {
+                u4(key);
+                fixups.add(new int[] { position(), instruction, ops[key], 4 });
+                u4(0);
+            }
+        }
+
+        boolean resolve() {
+            byte[] code = bytes.toByteArray();
+            if (code.length > MAX_CODE) return false;
+            for (int[] fixup: fixups) {
+                int at     = fixup[0];
+                int offset = labels.get(fixup[2]) - fixup[1];
+                if (fixup[3] == 4) {
+                    code[at++] = (byte)(offset >>> 24);
+                    code[at++] = (byte)(offset >>> 16);
+                }
+                code[at++] = (byte)(offset >>> 8);
+                code[at]   = (byte)offset;
+            }
+            resolved = code;
+            return true;
+        }
+
+        byte[] toByteArray() {
+            return resolved != null ? resolved : bytes.toByteArray();
+        }
+    }
+
+    /**
+     * Just the kinds of constants we need.
+     */
+    private static class ConstantPool {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out        = new DataOutputStream(bytes);
+        private final Map<String, Integer> index  = new HashMap<String, Integer>();
+        private int count = 1;
+
+        int utf8(String s) {
+            Integer i = index.get("utf8:" + s);
+            if (i != null) return i;
+            try {
+                out.writeByte(1);
+                out.writeUTF(s);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+            return add("utf8:" + s);
+        }
+
+        int classRef(String name) {
+            Integer i = index.get("class:" + name);
+            if (i != null) return i;
+            return entry("class:" + name, 7, utf8(name), -1);
+        }
+
+        int method(String owner, String name, String descriptor) {
+            String key = "method:" + owner + "." + name + descriptor;
+            Integer i = index.get(key);
+            if (i != null) return i;
+            int c  = classRef(owner);
+            int nt = nameAndType(name, descriptor);
+            return entry(key, 10, c, nt);
+        }
+
+        int interfaceMethod(String owner, String name, String descriptor) {
+            String key = "imethod:" + owner + "." + name + descriptor;
+            Integer i = index.get(key);
+            if (i != null) return i;
+            int c  = classRef(owner);
+            int nt = nameAndType(name, descriptor);
+            return entry(key, 11, c, nt);
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            String key = "nt:" + name + descriptor;
+            Integer i = index.get(key);
+            if (i != null) return i;
+            int n = utf8(name);
+            int d = utf8(descriptor);
+            return entry(key, 12, n, d);
+        }
+
+        private int entry(String key, int tag, int a, int b) {
+            try {
+                out.writeByte(tag);
+                out.writeShort(a);
+                if (b != -1) out.writeShort(b);
+            } catch (IOException ioe) {
+                throw new AssertionError(ioe);
+            }
+            return add(key);
+        }
+
+        private int add(String key) {
+            index.put(key, count);
+            return count++;
+        }
+
+        void write(DataOutputStream to) throws IOException {
+            out.flush();
+            to.writeShort(count);
+            bytes.writeTo(to);
+        }
+    }
+}
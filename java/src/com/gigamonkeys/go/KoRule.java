@@ -0,0 +1,23 @@
+package com.gigamonkeys.go;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Which repetitions of a position are illegal.
+ */
+public enum KoRule {
+
+    /**
+     * A move may not recreate the position that existed just after
+     * the same player's previous move.
+     */
+    SIMPLE,
+
+    /**
+     * A move may not recreate any earlier position in the game,
+     * regardless of who is to play.
+     */
+    POSITIONAL_SUPERKO
+}
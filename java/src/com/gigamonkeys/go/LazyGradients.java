@@ -0,0 +1,83 @@
+package com.gigamonkeys.go;
+
+import java.util.BitSet;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Gradients whose updates are queued until somebody actually asks
+ * for the values. Most critters never execute a gradient opcode so
+ * most of the time the updates would be wasted; when they are
+ * needed, all the changes since the last time are applied in one
+ * go, or by rebuilding from the current stones if that's cheaper. A
+ * stone that is added and then removed again (or vice versa) before
+ * anyone looks simply drops out of the queue.
+ */
+final class LazyGradients {
+
+    private final Gradients gradients;
+    private final BitSet bits;
+    private final BitSet added;
+    private final BitSet removed;
+    private boolean dirty = false;
+
+    /**
+     * Gradients of the given bits, which the caller will keep in sync
+     * with the calls to set and clear.
+     */
+    LazyGradients(int size, BitSet bits) {
+        this.gradients = new Gradients(size);
+        this.bits      = bits;
+        this.added     = new BitSet(size * size);
+        this.removed   = new BitSet(size * size);
+        this.added.or(bits);
+        this.dirty     = !bits.isEmpty();
+    }
+
+    void set(int p) {
+        if (removed.get(p)) {
+            removed.clear(p);
+        } else {
+            added.set(p);
+        }
+        dirty = true;
+    }
+
+    void clear(int p) {
+        if (added.get(p)) {
+            added.clear(p);
+        } else {
+            removed.set(p);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Queue whatever it takes to get from our bits to now and make our
+     * bits the same as now. Only for LazyGradients that own their
+     * bits, like the ones in a ContextSnapshot, which catch up with
+     * the GameContext each time it's published.
+     */
+    void sync(BitSet now) {
+        for (int p = now.nextSetBit(0); p != -1; p = now.nextSetBit(p + 1)) {
+            if (!bits.get(p)) set(p);
+        }
+        for (int p = bits.nextSetBit(0); p != -1; p = bits.nextSetBit(p + 1)) {
+            if (!now.get(p)) clear(p);
+        }
+        bits.clear();
+        bits.or(now);
+    }
+
+    int[] toArray() {
+        if (dirty) {
+            gradients.apply(added, removed, bits);
+            added.clear();
+            removed.clear();
+            dirty = false;
+        }
+        return gradients.toArray();
+    }
+}
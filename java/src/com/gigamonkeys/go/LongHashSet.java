@@ -0,0 +1,110 @@
+package com.gigamonkeys.go;
+
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Minimal open-addressing set of longs, to avoid boxing every
+ * position hash we want to remember. Uses linear probing with zero
+ * as the empty-slot marker; zero itself, if added, is tracked with a
+ * separate flag.
+ */
+class LongHashSet {
+
+    private long[] slots;
+    private int count;
+    private boolean containsZero;
+
+    LongHashSet(int expected) {
+        int capacity = 16;
+        while (capacity < expected * 2) capacity <<= 1;
+        this.slots = new long[capacity];
+    }
+
+    public boolean add(long value) {
+        if (value == 0) {
+            boolean added = !containsZero;
+            containsZero = true;
+            return added;
+        }
+        int mask = slots.length - 1;
+        int i = index(value, mask);
+        while (slots[i] != 0) {
+            if (slots[i] == value) return false;
+            i = (i + 1) & mask;
+        }
+        slots[i] = value;
+        if (++count * 2 > slots.length) grow();
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) return containsZero;
+        int mask = slots.length - 1;
+        int i = index(value, mask);
+        while (slots[i] != 0) {
+            if (slots[i] == value) return true;
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    public boolean remove(long value) {
+        if (value == 0) {
+            boolean removed = containsZero;
+            containsZero = false;
+            return removed;
+        }
+        int mask = slots.length - 1;
+        int i = index(value, mask);
+        while (slots[i] != value) {
+            if (slots[i] == 0) return false;
+            i = (i + 1) & mask;
+        }
+
+        // Backward shift deletion: move later entries of the probe
+        // run into the hole if that brings them no further from
+        // their home slot, so lookups never need tombstones.
+        int hole = i;
+        int j    = (i + 1) & mask;
+        while (slots[j] != 0) {
+            int home = index(slots[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                slots[hole] = slots[j];
+                hole = j;
+            }
+            j = (j + 1) & mask;
+        }
+        slots[hole] = 0;
+        count--;
+        return true;
+    }
+
+    public void clear() {
+        Arrays.fill(slots, 0);
+        count        = 0;
+        containsZero = false;
+    }
+
+    private void grow() {
+        long[] old = slots;
+        slots = new long[old.length * 2];
+        int mask = slots.length - 1;
+        for (long value: old) {
+            if (value != 0) {
+                int i = index(value, mask);
+                while (slots[i] != 0) i = (i + 1) & mask;
+                slots[i] = value;
+            }
+        }
+    }
+
+    private static int index(long value, int mask) {
+        // Zobrist hashes are already well mixed but fold in the high
+        // bits anyway so arbitrary longs don't cluster.
+        return (int)(value ^ (value >>> 32)) & mask;
+    }
+}
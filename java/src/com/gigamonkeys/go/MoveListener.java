@@ -0,0 +1,30 @@
+package com.gigamonkeys.go;
+
+import java.util.BitSet;
+import java.util.EventListener;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Low-level listener that hears about each move as a single call
+ * with primitive arguments rather than one BoardEvent per stone. The
+ * BitSets passed in belong to the Board and are reused from move to
+ * move so they must only be read during the call.
+ */
+public interface MoveListener extends EventListener {
+
+    /**
+     * A stone of the given color was placed at position, capturing
+     * the (possibly empty) set of opposing stones in captured.
+     */
+    public void movePlayed(int position, Color color, BitSet captured);
+
+    /**
+     * The move by color at position was taken back and the stones it
+     * captured, in restored, were put back on the board.
+     */
+    public void moveUndone(int position, Color color, BitSet restored);
+
+}
@@ -0,0 +1,503 @@
+package com.gigamonkeys.go;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.gigamonkeys.go.VM.*;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Make Programs smaller without changing what they do. Randomly
+ * evolved genomes are full of code that can never run and sequences
+ * that don't do anything, like PUSH followed by POP, or that compute
+ * constants. We thread jumps to jumps, drop unreachable ops, fold
+ * constant arithmetic and branches, and squeeze out ops with no
+ * effect. Finally we replace common sequences of ops with the VM's
+ * fused ops.
+ *
+ * "Without changing what they do" is strict: the optimized program
+ * must end up in the same position and direction, and consume the
+ * same random numbers, as the original in every case, including when
+ * it runs out of cycles or overflows the stack partway through. Two
+ * things make that work. First, an op that replaces several ops
+ * costs as many cycles as they did, and the VM checks the cycle limit
+ * before running it. Second, we only ever merge ops that can't move
+ * the critter or use the random number generator. So any way the
+ * original could have stopped partway through a merged sequence
+ * leaves the critter where it was at the start of the sequence,
+ * which is exactly where the optimized version stops: either at the
+ * cycle check or at an explicit check (CHECK or PUSHK) for the stack
+ * room the original ops would have needed.
+ */
+final class Optimizer {
+
+    private Optimizer() {}
+
+    /**
+     * One op while we're working on it.
+     */
+    private static class Node {
+        byte opcode;
+        int operand;
+        int room; // for the ops that check for room
+        int cost;
+        int address;
+        Node target;
+        boolean join;
+
+        Node(byte opcode, int operand, int room, int cost, int address) {
+            this.opcode  = opcode;
+            this.operand = operand;
+            this.room    = room;
+            this.cost    = cost;
+            this.address = address;
+        }
+
+        boolean fallsThrough() {
+            return opcode != GOTO && opcode != CALL && opcode != RET && opcode != STOP;
+        }
+
+        boolean pushesConstant() {
+            return opcode == PUSH || opcode == PUSHK;
+        }
+
+        int pushRoom() {
+            return opcode == PUSHK ? room : 1;
+        }
+
+        void push(int value, int room) {
+            this.opcode  = room == 1 ? PUSH : PUSHK;
+            this.operand = value;
+            this.room    = room;
+        }
+    }
+
+    static Program optimize(Program program) {
+        List<Node> nodes = nodes(program);
+        do {
+            threadJumps(nodes);
+            nodes = reachable(nodes);
+            markJoins(nodes);
+        } while (peephole(nodes));
+        fuse(nodes);
+        return program(nodes);
+    }
+
+    private static List<Node> nodes(Program program) {
+        int n = program.size();
+        List<Node> nodes = new ArrayList<Node>(n);
+        for (int i = 0; i < n; i++) {
+            int room = checksRoom(program.opcodes[i]) ? program.targets[i] : 0;
+            nodes.add(new Node(program.opcodes[i], program.operands[i], room, program.costs[i], program.addresses[i]));
+        }
+        for (int i = 0; i < n; i++) {
+            if (isBranch(program.opcodes[i])) {
+                nodes.get(i).target = nodes.get(program.targets[i]);
+            }
+        }
+        return nodes;
+    }
+
+    private static Program program(List<Node> nodes) {
+        int n            = nodes.size();
+        byte[] opcodes   = new byte[n];
+        int[] operands   = new int[n];
+        int[] targets    = new int[n];
+        int[] addresses  = new int[n];
+        int[] costs      = new int[n];
+        Map<Node, Integer> index = indexes(nodes);
+
+        for (int i = 0; i < n; i++) {
+            Node node    = nodes.get(i);
+            opcodes[i]   = node.opcode;
+            operands[i]  = node.operand;
+            addresses[i] = node.address;
+            costs[i]     = node.cost;
+            if (isBranch(node.opcode)) {
+                targets[i] = index.get(node.target);
+            } else if (checksRoom(node.opcode)) {
+                targets[i] = node.room;
+            } else if (node.opcode == CHECK) {
+                targets[i] = 0;
+            } else {
+                targets[i] = -1;
+            }
+        }
+        return new Program(opcodes, operands, targets, addresses, costs);
+    }
+
+    private static Map<Node, Integer> indexes(List<Node> nodes) {
+        Map<Node, Integer> index = new IdentityHashMap<Node, Integer>();
+        for (int i = 0; i < nodes.size(); i++) index.put(nodes.get(i), i);
+        return index;
+    }
+
+    /*
+     * Point unconditional jumps and calls whose target is a GOTO at
+     * that GOTO's target instead. Since they would always have gone
+     * through the GOTO, they take on its cost.
+     */
+    private static void threadJumps(List<Node> nodes) {
+        for (Node node: nodes) {
+            if (node.opcode == GOTO || node.opcode == CALL) {
+                Set<Node> seen = new HashSet<Node>();
+                Node target    = node.target;
+                int cost       = node.cost;
+                seen.add(node);
+                while (target.opcode == GOTO && seen.add(target)) {
+                    cost  += target.cost;
+                    target = target.target;
+                }
+                // If we ended up going around a loop of GOTOs, leave
+                // it be. Pointless code but harmless.
+                if (target.opcode != GOTO) {
+                    node.target = target;
+                    node.cost   = cost;
+                }
+            }
+        }
+    }
+
+    /*
+     * The nodes reachable from the first one, in their original
+     * order. An op after a CALL is reachable since the CALL may
+     * return to it, as is an op after a RET if there's a CALL with
+     * nowhere to return to. Since anything that falls through to the
+     * next op makes it reachable, the last op left is always one that
+     * doesn't fall through.
+     */
+    private static List<Node> reachable(List<Node> nodes) {
+        Map<Node, Integer> index = indexes(nodes);
+        boolean[] reached        = new boolean[nodes.size()];
+        List<Integer> work       = new ArrayList<Integer>();
+        boolean nowhere          = callsNowhere(nodes);
+
+        work.add(0);
+        while (!work.isEmpty()) {
+            int i = work.remove(work.size() - 1);
+            if (reached[i]) continue;
+            reached[i] = true;
+            Node node = nodes.get(i);
+            if (node.fallsThrough() || returnsTo(node, nowhere)) work.add(i + 1);
+            if (node.target != null) work.add(index.get(node.target));
+        }
+
+        List<Node> result = new ArrayList<Node>();
+        for (int i = 0; i < nodes.size(); i++) {
+            if (reached[i]) result.add(nodes.get(i));
+        }
+        return result;
+    }
+
+    /*
+     * Joins are ops that can be reached other than by falling
+     * through from the op before, i.e. branch targets and the return
+     * points of CALLs. We never merge a join into the op before it.
+     */
+    private static void markJoins(List<Node> nodes) {
+        boolean nowhere = callsNowhere(nodes);
+        for (Node node: nodes) node.join = false;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            if (node.target != null) node.target.join = true;
+            if (returnsTo(node, nowhere)) nodes.get(i + 1).join = true;
+        }
+    }
+
+    // Whether there's a CALL that pushes NOWHERE, in which case RETs
+    // can go on to the op after them.
+    private static boolean callsNowhere(List<Node> nodes) {
+        for (Node node: nodes) {
+            if (node.opcode == CALL && node.operand == NOWHERE) return true;
+        }
+        return false;
+    }
+
+    // Whether a RET can get to the op after the node, either by
+    // returning from the CALL or, for a RET, by popping NOWHERE.
+    private static boolean returnsTo(Node node, boolean nowhere) {
+        return node.opcode == CALL || (nowhere && node.opcode == RET);
+    }
+
+    /*
+     * One pass of local rewrites. Returns true if anything changed.
+     */
+    private static boolean peephole(List<Node> nodes) {
+        boolean changed = false;
+        int i = 0;
+        while (i < nodes.size()) {
+            if (rewrite(nodes, i)) {
+                changed = true;
+                // Back up in case the result combines with what came before.
+                i = Math.max(i - 2, 0);
+            } else {
+                i++;
+            }
+        }
+        return changed;
+    }
+
+    private static boolean rewrite(List<Node> nodes, int i) {
+        Node a = nodes.get(i);
+        Node b = next(nodes, i);
+        Node c = b != null ? next(nodes, i + 1) : null;
+
+        if (a.opcode == GOTO && i + 1 < nodes.size() && a.target == nodes.get(i + 1)) {
+            // Jump to the next op.
+            a.opcode = SKIP;
+            a.target = null;
+            return true;
+        }
+
+        if (b == null) return false;
+
+        if (a.opcode == SKIP) {
+            // Nothing to do; let the next op pay for it.
+            absorb(a, b);
+            nodes.remove(i + 1);
+            return true;
+        }
+
+        if (a.opcode == NOT && b.opcode == NOT) {
+            a.opcode = SKIP;
+            a.cost  += b.cost;
+            nodes.remove(i + 1);
+            return true;
+        }
+
+        if (a.opcode == CHECK && (b.opcode == CHECK || b.pushesConstant())) {
+            int room = Math.max(a.operand, b.opcode == CHECK ? b.operand : b.pushRoom());
+            absorb(a, b);
+            if (a.opcode == CHECK) {
+                a.operand = room;
+            } else {
+                a.push(a.operand, room);
+            }
+            nodes.remove(i + 1);
+            return true;
+        }
+
+        if (pushesAnything(a) && b.opcode == POP) {
+            // Push something and then pop it off again: all that's
+            // left is the check that there was room to push.
+            int room = a.pushesConstant() ? a.pushRoom() : 1;
+            a.opcode  = CHECK;
+            a.operand = room;
+            a.cost   += b.cost;
+            nodes.remove(i + 1);
+            return true;
+        }
+
+        if (a.pushesConstant() && isUnary(b.opcode)) {
+            a.push(unary(b.opcode, a.operand), a.pushRoom());
+            a.cost += b.cost;
+            nodes.remove(i + 1);
+            return true;
+        }
+
+        if (a.pushesConstant() && isConditional(b.opcode)) {
+            // The branch pops the constant off again so all that's
+            // left of the PUSH is the check and we know which way
+            // the branch goes.
+            boolean jump = taken(b.opcode, a.operand);
+            a.operand    = a.pushRoom();
+            a.opcode     = CHECK;
+            a.cost      += b.cost;
+            if (jump) {
+                b.opcode = GOTO;
+                b.cost   = 0;
+            } else {
+                nodes.remove(i + 1);
+            }
+            return true;
+        }
+
+        if (c != null && a.pushesConstant() && b.pushesConstant() && isBinary(c.opcode)) {
+            int room = Math.max(a.pushRoom(), b.pushRoom() + 1);
+            a.push(binary(c.opcode, b.operand, a.operand), room);
+            a.cost += b.cost + c.cost;
+            nodes.remove(i + 2);
+            nodes.remove(i + 1);
+            return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Replace sequences of ops with fused ops. The same reasoning that
+     * makes the peephole rewrites safe applies: none of the fused
+     * sequences move the critter or use the random number generator
+     * and the fused ops check for the stack room the originals
+     * needed. Done last since the rewrites don't know about fused
+     * ops.
+     */
+    private static void fuse(List<Node> nodes) {
+        for (int i = 0; i < nodes.size(); i++) {
+            Node a = nodes.get(i);
+            Node b = next(nodes, i);
+            Node c = b != null ? next(nodes, i + 1) : null;
+
+            if (b == null) continue;
+
+            if (c != null && a.opcode == POSITION && b.pushesConstant() && c.opcode == MOD) {
+                // The constant is pushed on top of the position.
+                a.opcode  = POSITION_MODK;
+                a.operand = b.operand;
+                a.room    = b.pushRoom() + 1;
+                a.cost   += b.cost + c.cost;
+                nodes.remove(i + 2);
+                nodes.remove(i + 1);
+            } else if (a.pushesConstant() && b.opcode == ADD) {
+                a.room    = a.pushRoom();
+                a.opcode  = ADDK;
+                a.cost   += b.cost;
+                nodes.remove(i + 1);
+            } else if (a.opcode == DUP && (b.opcode == IFZERO || b.opcode == IFNZERO)) {
+                a.opcode  = b.opcode == IFZERO ? DUP_IFZERO : DUP_IFNZERO;
+                a.target  = b.target;
+                a.cost   += b.cost;
+                nodes.remove(i + 1);
+            } else if (flagBit(a.opcode) != -1 && (b.opcode == IFZERO || b.opcode == IFNZERO)) {
+                a.operand = flagBit(a.opcode);
+                a.opcode  = b.opcode == IFZERO ? FLAG_IFZERO : FLAG_IFNZERO;
+                a.target  = b.target;
+                a.cost   += b.cost;
+                nodes.remove(i + 1);
+            }
+        }
+    }
+
+    private static int flagBit(byte opcode) {
+        switch (opcode) {
+        case MINE:   return GameContext.MINE_BIT;
+        case THEIRS: return GameContext.THEIRS_BIT;
+        case EMPTY:  return GameContext.EMPTY_BIT;
+        default:     return -1;
+        }
+    }
+
+    /*
+     * The op after i if it can only be reached by falling through
+     * from i, otherwise null.
+     */
+    private static Node next(List<Node> nodes, int i) {
+        if (i + 1 >= nodes.size()) return null;
+        Node node = nodes.get(i);
+        Node next = nodes.get(i + 1);
+        return node.fallsThrough() && !next.join ? next : null;
+    }
+
+    // Merge a, which has no effect, into b by giving a b's identity
+    // and the cost of both. a keeps its place and thus its joins.
+    private static void absorb(Node a, Node b) {
+        a.cost    += b.cost;
+        a.opcode   = b.opcode;
+        a.operand  = b.operand;
+        a.room     = b.room;
+        a.target   = b.target;
+    }
+
+    private static boolean pushesAnything(Node node) {
+        switch (node.opcode) {
+        case PUSH:
+        case PUSHK:
+        case DUP:
+        case POSITION:
+        case MINE:
+        case THEIRS:
+        case EMPTY:
+        case MINE_GRADIENT:
+        case THEIR_GRADIENT:
+        case EMPTY_GRADIENT:
+        case CORNER_GRADIENT:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    private static boolean isUnary(byte opcode) {
+        return opcode == INC || opcode == DEC || opcode == NOT;
+    }
+
+    private static int unary(byte opcode, int tos) {
+        switch (opcode) {
+        case INC: return tos + 1;
+        case DEC: return tos - 1;
+        case NOT: return ~tos;
+        default: throw new IllegalArgumentException();
+        }
+    }
+
+    private static boolean isConditional(byte opcode) {
+        return IFZERO <= opcode && opcode <= IFNNEG;
+    }
+
+    private static boolean taken(byte opcode, int tos) {
+        switch (opcode) {
+        case IFZERO:  return tos == 0;
+        case IFPOS:   return tos > 0;
+        case IFNEG:   return tos < 0;
+        case IFNZERO: return tos != 0;
+        case IFNPOS:  return tos <= 0;
+        case IFNNEG:  return tos >= 0;
+        default: throw new IllegalArgumentException();
+        }
+    }
+
+    private static boolean isBinary(byte opcode) {
+        switch (opcode) {
+        case ADD:
+        case SUB:
+        case DIV:
+        case MOD:
+        case BOOLE_2:
+        case BOOLE_ANDC1:
+        case BOOLE_ANDC2:
+        case BOOLE_AND:
+        case BOOLE_EQV:
+        case BOOLE_IOR:
+        case BOOLE_NAND:
+        case BOOLE_NOR:
+        case BOOLE_ORC1:
+        case BOOLE_ORC2:
+        case BOOLE_XOR:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /*
+     * The value of tos after a binary op with tos in tos and the
+     * value it pops in popped. Must match VM.execute.
+     */
+    private static int binary(byte opcode, int tos, int popped) {
+        switch (opcode) {
+        case ADD:         return tos + popped;
+        case SUB:         return tos - popped;
+        case DIV:         return popped == 0 ? 0 : tos / popped;
+        case MOD:         return popped == 0 ? 0 : tos % popped;
+        case BOOLE_2:     return popped;
+        case BOOLE_ANDC1: return ~tos & popped;
+        case BOOLE_ANDC2: return tos & ~popped;
+        case BOOLE_AND:   return tos & popped;
+        case BOOLE_EQV:   return ~(tos ^ popped);
+        case BOOLE_IOR:   return tos | popped;
+        case BOOLE_NAND:  return ~(tos & popped);
+        case BOOLE_NOR:   return ~(tos | popped);
+        case BOOLE_ORC1:  return ~tos | popped;
+        case BOOLE_ORC2:  return tos | ~popped;
+        case BOOLE_XOR:   return tos ^ popped;
+        default: throw new IllegalArgumentException();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.gigamonkeys.go;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Where a packed perception buffer comes from, either a GameContext
+ * or a ContextSnapshot. The flags and the corner gradient are always
+ * current but the other gradient slots are only filled in on request,
+ * one gradient at a time, since most critters never look at them and
+ * those that do mostly look at only one.
+ */
+interface Perception {
+
+    /**
+     * Make sure the given gradient slot of the buffer is current.
+     */
+    void updateGradient(int slot);
+
+}
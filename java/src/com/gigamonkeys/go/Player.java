@@ -24,7 +24,9 @@ public interface Player {
      * make moves on the board and then count on the board to throw an
      * IllegalMoveException if there's something wrong with the
      * move. However this means that a badly behaving Player could sit
-     * in a loop trying the same move over and over again.
+     * in a loop trying the same move over and over again. Players
+     * that try lots of moves should use Board.tryPlaceStone, which
+     * returns a status code instead of throwing.
      */
     public boolean move();
 
@@ -0,0 +1,590 @@
+package com.gigamonkeys.go;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static com.gigamonkeys.go.GameContext.*;
+import static com.gigamonkeys.go.VM.*;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * What a profiling VM saw while running critters: how many times
+ * each opcode was executed, how many cycles each execute took, and
+ * why each one stopped.
+ *
+ * A profiling VM runs every critter's program as written, op for op,
+ * in the interpreter in this class rather than the VM's own. So the
+ * counts are of the critters' own opcodes, not whatever the Optimizer
+ * turned them into, which is what we want when deciding what's worth
+ * optimizing. And since nothing has been verified away we can see
+ * exactly which op ran off which stack. The critters end up in the
+ * same places either way. Non-profiling VMs never touch any of this.
+ *
+ * Profiles can be shared by several VMs and threads. Each thread
+ * counts into its own arrays, without locking, and reading the
+ * profile adds them up, so read it once the critters being profiled
+ * have finished running; while they're still running on other
+ * threads the numbers are only approximate. Once a thread has
+ * finished, its counts are folded into one total for all finished
+ * threads so short-lived threads don't pile up.
+ *
+ * The interpreter's switch is generated from the one in VM.execute
+ * by vm.pl so the two can't drift apart. What's hand written here is
+ * the loop around it, which checks each op before it runs so it can
+ * tell why a critter stopped.
+ */
+public final class Profile {
+
+    /**
+     * Why an execute stopped.
+     */
+    public enum Termination {
+
+        /** Ran a STOP. */
+        STOP,
+
+        /** Ran off the end of the program. */
+        END,
+
+        /** Used up its cycles. */
+        CYCLES,
+
+        /** Needed more values than were on the stack. */
+        UNDERFLOW,
+
+        /** Pushed onto a full stack. */
+        OVERFLOW,
+
+        /** CALLed with a full call stack. */
+        CALL_OVERFLOW,
+
+        /** RET with nothing on the call stack. */
+        RET_UNDERFLOW,
+
+        /** LOAD or STORE with a negative address. */
+        BAD_ADDRESS
+    }
+
+    /**
+     * Number of buckets in the cycle histogram. Bucket 0 counts
+     * executes that ran no ops at all and bucket b, for b > 0, those
+     * that ran from 2^(b-1) up to 2^b - 1 ops.
+     */
+    public final static int BUCKETS = 33;
+
+    /*
+     * The counts from one thread, or the sum of several.
+     */
+    private static final class Counts {
+        final Thread thread;
+        final long[] ops          = new long[256];
+        final long[] histogram    = new long[BUCKETS];
+        final long[] terminations = new long[Termination.values().length];
+        long cycles               = 0;
+
+        Counts(Thread thread) {
+            this.thread = thread;
+        }
+
+        void add(Counts that) {
+            for (int i = 0; i < ops.length; i++) ops[i] += that.ops[i];
+            for (int i = 0; i < histogram.length; i++) histogram[i] += that.histogram[i];
+            for (int i = 0; i < terminations.length; i++) terminations[i] += that.terminations[i];
+            cycles += that.cycles;
+        }
+
+        void clear() {
+            Arrays.fill(ops, 0);
+            Arrays.fill(histogram, 0);
+            Arrays.fill(terminations, 0);
+            cycles = 0;
+        }
+
+        long executions() {
+            long n = 0;
+            for (long t: terminations) n += t;
+            return n;
+        }
+    }
+
+    // The counts of every thread still running, or at least running
+    // last we looked, so we can add them up, and the sum of the rest.
+    private final List<Counts> all = new ArrayList<Counts>();
+    private final Counts finished  = new Counts(null);
+
+    private final ThreadLocal<Counts> counts = new ThreadLocal<Counts>() {
+        @Override protected Counts initialValue() {
+            Counts c = new Counts(Thread.currentThread());
+            synchronized (Profile.this) {
+                prune();
+                all.add(c);
+            }
+            return c;
+        }
+    };
+
+    /**
+     * Number of times the opcode was executed.
+     */
+    public long count(byte opcode) { return total().ops[opcode & 0xff]; }
+
+    /**
+     * The histogram of cycles per execute. See BUCKETS.
+     */
+    public long[] histogram() { return total().histogram; }
+
+    /**
+     * Number of executes that stopped for the given reason.
+     */
+    public long terminations(Termination why) { return total().terminations[why.ordinal()]; }
+
+    public long executions() { return total().executions(); }
+
+    /**
+     * Total ops executed over all executes.
+     */
+    public long cycles() { return total().cycles; }
+
+    /**
+     * The bucket an execute that ran the given number of ops is
+     * counted in.
+     */
+    public static int bucket(int cycles) {
+        return 32 - Integer.numberOfLeadingZeros(cycles);
+    }
+
+    public synchronized void reset() {
+        for (Counts c: all) c.clear();
+        finished.clear();
+    }
+
+    /**
+     * Number of threads whose counts are still kept separately.
+     */
+    synchronized int threads() { return all.size(); }
+
+    private synchronized Counts total() {
+        prune();
+        Counts total = new Counts(null);
+        total.add(finished);
+        for (Counts c: all) total.add(c);
+        return total;
+    }
+
+    // Fold the counts of threads that have finished into finished. A
+    // thread's writes are all visible once isAlive() says it's done.
+    private void prune() {
+        for (Iterator<Counts> i = all.iterator(); i.hasNext();) {
+            Counts c = i.next();
+            if (!c.thread.isAlive()) {
+                finished.add(c);
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Print the profile in a form meant for people: the opcodes most
+     * executed first, then the histogram and the reasons for
+     * stopping.
+     */
+    public void dump(PrintStream out) {
+        Counts total    = total();
+        long executions = total.executions();
+        long[] ops      = total.ops;
+
+        out.println(executions + " executes; " + total.cycles + " cycles; " +
+                    String.format("%.1f", executions == 0 ? 0.0 : (double)total.cycles / executions) + " per execute.");
+
+        out.println("Opcodes:");
+        boolean[] done = new boolean[ops.length];
+        while (true) {
+            int max = -1;
+            for (int i = 0; i < ops.length; i++) {
+                if (!done[i] && ops[i] > 0 && (max == -1 || ops[i] > ops[max])) max = i;
+            }
+            if (max == -1) break;
+            done[max] = true;
+            out.println(String.format("  %-16s %12d %6.2f%%", name((byte)max), ops[max], percent(ops[max], total.cycles)));
+        }
+
+        out.println("Cycles per execute:");
+        for (int b = 0; b < BUCKETS; b++) {
+            long n = total.histogram[b];
+            if (n == 0) continue;
+            String range = b < 2 ? String.valueOf(b) : (1L << (b - 1)) + "-" + ((1L << b) - 1);
+            out.println(String.format("  %-16s %12d %6.2f%%", range, n, percent(n, executions)));
+        }
+
+        out.println("Terminations:");
+        for (Termination why: Termination.values()) {
+            long n = total.terminations[why.ordinal()];
+            out.println(String.format("  %-16s %12d %6.2f%%", why, n, percent(n, executions)));
+        }
+    }
+
+    private static double percent(long n, long total) {
+        return total == 0 ? 0.0 : 100.0 * n / total;
+    }
+
+    /*
+     * The profiling interpreter. Same contract as the VM's interpreter
+     * except that program should be unoptimized, so each op is one of
+     * the critter's own. Rather than catch the exceptions when an op
+     * runs off a stack we check before each op, using the Verifier's
+     * idea of what it needs, which also tells us which way it went.
+     * Once an op is running the only ways to stop are STOP and LOAD
+     * or STORE with a bad address.
+     */
+    long run(Program program, int position, int direction, int[] step, int[] perception,
+             Perception source, Frame frame, Random random, int maxCycles) {
+        int tos        = 0;
+        int sp         = 0;
+        int csp        = 0;
+        int cycles     = 0;
+        int tmp;
+
+        frame.reset(program);
+
+        int[] stack     = frame.stack;
+        int[] callstack = frame.callstack;
+        int[] memory    = frame.memory;
+        Counts counts   = this.counts.get();
+
+        // Same as the VM.
+        int limit       = maxCycles == Integer.MAX_VALUE ? maxCycles : maxCycles + 1;
+
+        byte[] opcodes  = program.opcodes;
+        int[] operands  = program.operands;
+        int[] targets   = program.targets;
+        int[] costs     = program.costs;
+        int pc          = 0;
+        int op          = 0;
+
+        boolean mineReady   = false;
+        boolean theirsReady = false;
+        boolean emptyReady  = false;
+        Termination why     = null;
+
+        execute:
+        while (true) {
+            op = pc++;
+            byte opcode = opcodes[op];
+
+            if ((cycles += costs[op]) > limit) {
+                cycles -= costs[op];
+                why = Termination.CYCLES;
+                break;
+            }
+            counts.ops[opcode & 0xff]++;
+
+            why = fault(opcode, operands[op], targets[op], sp, csp, stack.length, callstack.length);
+            if (why != null) break;
+
+            switch (opcodes[op]) {
+            case NOP:
+                break;
+            case LOAD:
+                tmp = tos % memory.length;
+                if (tmp < 0) break execute;
+                tos = memory[tmp];
+                break;
+            case STORE:
+                tmp = tos % memory.length;
+                if (tmp < 0) break execute;
+                memory[tmp] = stack[--sp];
+                tos = stack[--sp];
+                break;
+            case ADD:
+                tos += stack[--sp];
+                break;
+            case SUB:
+                tos -= stack[--sp];
+                break;
+            case MUL:
+                tos *= stack[-sp];
+                break;
+            case DIV:
+                tmp = stack[--sp];
+                tos = tmp == 0 ? 0 : tos / tmp;
+                break;
+            case MOD:
+                tmp = stack[--sp];
+                tos = tmp == 0 ? 0 : tos % tmp;
+                break;
+            case INC:
+                tos++;
+                break;
+            case DEC:
+                tos--;
+                break;
+            case RAND:
+                stack[sp++] = tos;
+                tos = random.nextInt();
+                break;
+            case FORWARD:
+                // Directions are always 0-3: north, east, south,
+                // west. Stepping off the edge leaves us in place.
+                position = step[(position << 2) | direction];
+                break;
+            case TURN_AROUND:
+                direction = (direction + 2) % 4;
+                break;
+            case TURN_RIGHT:
+                direction = (direction + 1) % 4;
+                break;
+            case TURN_LEFT:
+                // Not -1 because of % actually being rem not mod.
+                direction = (direction + 3) % 4;
+                break;
+            case POSITION:
+                stack[sp++] = tos;
+                tos = position;
+                break;
+            case BOOLE_1:
+                sp--;
+                break;
+            case BOOLE_2:
+                tos = stack[--sp];
+                break;
+            case BOOLE_ANDC1:
+                tos = ~tos & stack[--sp];
+                break;
+            case BOOLE_ANDC2:
+                tos = tos & ~stack[--sp];
+                break;
+            case BOOLE_AND:
+                tos = tos & stack[--sp];
+                break;
+            case BOOLE_C1:
+                tos = ~tos;
+                sp--;
+                break;
+            case BOOLE_C2:
+                tos = ~stack[--sp];
+                break;
+            case BOOLE_CLR:
+                tos = 0;
+                sp--;
+                break;
+            case BOOLE_EQV:
+                tos = ~(tos ^ stack[--sp]);
+                break;
+            case BOOLE_IOR:
+                tos = tos | stack[--sp];
+                break;
+            case BOOLE_NAND:
+                tos = ~(tos & stack[--sp]);
+                break;
+            case BOOLE_NOR:
+                tos = ~(tos | stack[--sp]);
+                break;
+            case BOOLE_ORC1:
+                tos = ~tos | stack[--sp];
+                break;
+            case BOOLE_ORC2:
+                tos = tos | ~stack[--sp];
+                break;
+            case BOOLE_SET:
+                tos = 0xffffffff;
+                sp--;
+                break;
+            case BOOLE_XOR:
+                tos = tos ^ stack[--sp];
+                break;
+            case NOT:
+                tos = ~tos;
+                break;
+            case POP:
+                tos = stack[--sp];
+                break;
+            case SWAP:
+                tmp = tos;
+                tos = stack[sp - 1];
+                stack[sp - 1] = tmp;
+                break;
+            case ROT:
+                tmp = stack[sp - 3];
+                stack[sp - 3] = stack[sp - 2];
+                stack[sp - 1] = tos;
+                tos = tmp;
+                break;
+            case DUP:
+                stack[sp++] = tos;
+                break;
+            case OVER:
+                stack[sp++] = tos;
+                tos = stack[sp - 2];
+                break;
+            case TUCK:
+                stack[sp] = stack[sp - 1];
+                stack[sp - 1] = tos;
+                sp++;
+                break;
+            case PUSH:
+                stack[sp++] = tos;
+                tos = operands[op];
+                break;
+            case IFZERO:
+                if (tos == 0) pc = targets[op];
+                tos = stack[--sp];
+                break;
+            case IFPOS:
+                if (tos > 0) pc = targets[op];
+                tos = stack[--sp];
+                break;
+            case IFNEG:
+                if (tos < 0) pc = targets[op];
+                tos = stack[--sp];
+                break;
+            case IFNZERO:
+                if (tos != 0) pc = targets[op];
+                tos = stack[--sp];
+                break;
+            case IFNPOS:
+                if (tos <= 0) pc = targets[op];
+                tos = stack[--sp];
+                break;
+            case IFNNEG:
+                if (tos >= 0) pc = targets[op];
+                tos = stack[--sp];
+                break;
+            case GOTO:
+                pc = targets[op];
+                break;
+            case CALL:
+                callstack[csp++] = operands[op] == NOWHERE ? NOWHERE : pc;
+                pc = targets[op];
+                break;
+            case RET:
+                tmp = callstack[--csp];
+                if (tmp != NOWHERE) pc = tmp;
+                break;
+            case STOP:
+                break execute;
+            case MINE:
+                stack[sp++] = tos;
+                tos = (perception[position * STRIDE + FLAGS_SLOT] >>> MINE_BIT) & 1;
+                break;
+            case THEIRS:
+                stack[sp++] = tos;
+                tos = (perception[position * STRIDE + FLAGS_SLOT] >>> THEIRS_BIT) & 1;
+                break;
+            case EMPTY:
+                stack[sp++] = tos;
+                tos = (perception[position * STRIDE + FLAGS_SLOT] >>> EMPTY_BIT) & 1;
+                break;
+            case MINE_GRADIENT:
+                stack[sp++] = tos;
+                if (!mineReady) {
+                    source.updateGradient(MINE_GRADIENT_SLOT);
+                    mineReady = true;
+                }
+                tos = perception[position * STRIDE + MINE_GRADIENT_SLOT];
+                break;
+            case THEIR_GRADIENT:
+                stack[sp++] = tos;
+                if (!theirsReady) {
+                    source.updateGradient(THEIRS_GRADIENT_SLOT);
+                    theirsReady = true;
+                }
+                tos = perception[position * STRIDE + THEIRS_GRADIENT_SLOT];
+                break;
+            case EMPTY_GRADIENT:
+                stack[sp++] = tos;
+                if (!emptyReady) {
+                    source.updateGradient(EMPTY_GRADIENT_SLOT);
+                    emptyReady = true;
+                }
+                tos = perception[position * STRIDE + EMPTY_GRADIENT_SLOT];
+                break;
+            case CORNER_GRADIENT:
+                stack[sp++] = tos;
+                tos = perception[position * STRIDE + CORNER_GRADIENT_SLOT];
+                break;
+            case SKIP:
+                break;
+            case CHECK:
+                if (sp < targets[op] || sp + operands[op] > stack.length) break execute;
+                break;
+            case PUSHK:
+                if (sp < 0 || sp + targets[op] > stack.length) break execute;
+                stack[sp++] = tos;
+                tos = operands[op];
+                break;
+            case ADDK:
+                if (sp < 0 || sp + targets[op] > stack.length) break execute;
+                tos += operands[op];
+                break;
+            case POSITION_MODK:
+                if (sp < 0 || sp + targets[op] > stack.length) break execute;
+                stack[sp++] = tos;
+                tos = position == 0 ? 0 : operands[op] % position;
+                break;
+            case DUP_IFZERO:
+                if (sp < 0 || sp >= stack.length) break execute;
+                if (tos == 0) pc = targets[op];
+                break;
+            case DUP_IFNZERO:
+                if (sp < 0 || sp >= stack.length) break execute;
+                if (tos != 0) pc = targets[op];
+                break;
+            case FLAG_IFZERO:
+                if (sp < 0 || sp >= stack.length) break execute;
+                if (((perception[position * STRIDE + FLAGS_SLOT] >>> operands[op]) & 1) == 0) pc = targets[op];
+                break;
+            case FLAG_IFNZERO:
+                if (sp < 0 || sp >= stack.length) break execute;
+                if (((perception[position * STRIDE + FLAGS_SLOT] >>> operands[op]) & 1) != 0) pc = targets[op];
+                break;
+            case CALLCHECK:
+                if (csp < targets[op] || csp + operands[op] > callstack.length) break execute;
+                break;
+            default:
+                throw new RuntimeException("Illegal opcode: " + opcodes[op]);
+            }
+        }
+
+        if (why == null) {
+            // The compiler's STOP at the very end is where we get to by
+            // falling or jumping off the end of the program.
+            if (opcodes[op] == STOP) {
+                why = op == opcodes.length - 1 ? Termination.END : Termination.STOP;
+            } else if (opcodes[op] == LOAD || opcodes[op] == STORE) {
+                why = Termination.BAD_ADDRESS;
+            } else {
+                throw new IllegalStateException("Can't profile " + name(opcodes[op]) + "; is the program optimized?");
+            }
+        }
+
+        counts.histogram[bucket(cycles)]++;
+        counts.terminations[why.ordinal()]++;
+        counts.cycles += cycles;
+        return ((long)position << 32) | (direction & 0xffffffffL);
+    }
+
+    /*
+     * Why the op would fail if we ran it now, or null if it's safe.
+     * (MUL's stack[-sp] runs off the bottom of the stack when sp is
+     * too high and off the top when it's too low.)
+     */
+    private static Termination fault(byte opcode, int operand, int target, int sp, int csp,
+                                     int depth, int callDepth) {
+        if (sp < Verifier.low(opcode, target, depth)) {
+            return opcode == MUL ? Termination.OVERFLOW : Termination.UNDERFLOW;
+        }
+        if (sp > Verifier.high(opcode, operand, target, depth)) {
+            return opcode == MUL ? Termination.UNDERFLOW : Termination.OVERFLOW;
+        }
+        if (opcode == CALL && csp == callDepth) return Termination.CALL_OVERFLOW;
+        if (opcode == RET && csp == 0) return Termination.RET_UNDERFLOW;
+        return null;
+    }
+}
@@ -0,0 +1,147 @@
+package com.gigamonkeys.go;
+
+import java.util.List;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * A compiled critter in the form the VM actually runs: the ops laid
+ * out in parallel arrays indexed by op number rather than as a graph
+ * of Op objects. The successor of op i is always op i + 1 unless it
+ * branches, in which case targets[i] is the index of the other
+ * successor. The last op is always the STOP the compiler adds at the
+ * end so falling off the end of the program can't happen.
+ *
+ * A CALL's operand is NOWHERE if it was the last op of the genome and
+ * thus has nothing to return to; see VM.NOWHERE.
+ *
+ * After optimization one op may stand for several of the original
+ * ops, so each op also has a cost, the number of cycles it counts
+ * for. Optimized programs can also contain the VM's internal opcodes,
+ * some of which use targets[i] to hold a second operand.
+ */
+public final class Program {
+
+    final byte[] opcodes;
+    final int[] operands;
+    final int[] targets;
+    final int[] addresses;
+    final int[] costs;
+
+    /**
+     * Whether the program contains a STORE and thus might write to
+     * memory.
+     */
+    final boolean stores;
+
+    /**
+     * Whether the program never looks at the board or uses RAND, in
+     * which case where it ends up depends only on where it starts.
+     */
+    final boolean memoizable;
+
+    Program(List<Op> ops) {
+        int n              = ops.size();
+        boolean stores     = false;
+        boolean memoizable = true;
+        int[] index        = VM.addressIndex(ops);
+        this.opcodes       = new byte[n];
+        this.operands      = new int[n];
+        this.targets       = new int[n];
+        this.addresses     = new int[n];
+        this.costs         = new int[n];
+
+        for (int i = 0; i < n; i++) {
+            Op op        = ops.get(i);
+            opcodes[i]   = op.opcode;
+            operands[i]  = op.opcode == VM.CALL ? (op.next == null ? VM.NOWHERE : 0) : op.operand;
+            addresses[i] = op.address;
+            costs[i]     = 1;
+            targets[i]   = op.isBranchOrJump() ? index[op.next2.address] : -1;
+            stores      |= op.opcode == VM.STORE;
+            memoizable  &= !looks(op.opcode);
+        }
+        this.stores     = stores;
+        this.memoizable = memoizable;
+    }
+
+    Program(byte[] opcodes, int[] operands, int[] targets, int[] addresses, int[] costs) {
+        boolean stores     = false;
+        boolean memoizable = true;
+        for (byte opcode: opcodes) {
+            stores     |= opcode == VM.STORE;
+            memoizable &= !looks(opcode);
+        }
+
+        this.opcodes    = opcodes;
+        this.operands   = operands;
+        this.targets    = targets;
+        this.addresses  = addresses;
+        this.costs      = costs;
+        this.stores     = stores;
+        this.memoizable = memoizable;
+    }
+
+    // Whether the op uses anything other than the critter's position
+    // and direction and the stacks and memory.
+    private static boolean looks(byte opcode) {
+        switch (opcode) {
+        case VM.RAND:
+        case VM.MINE:
+        case VM.THEIRS:
+        case VM.EMPTY:
+        case VM.MINE_GRADIENT:
+        case VM.THEIR_GRADIENT:
+        case VM.EMPTY_GRADIENT:
+        case VM.CORNER_GRADIENT:
+        case VM.FLAG_IFZERO:
+        case VM.FLAG_IFNZERO:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Compile bytecodes into an optimized Program.
+     */
+    public static Program compile(byte[] bytecodes) {
+        return Optimizer.optimize(unoptimized(bytecodes));
+    }
+
+    /**
+     * Compile bytecodes into a Program that corresponds op for op
+     * with the bytecodes.
+     */
+    public static Program unoptimized(byte[] bytecodes) {
+        return new Program(VM.compile(bytecodes));
+    }
+
+    /**
+     * Number of ops, including the final STOP.
+     */
+    public int size() { return opcodes.length; }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < opcodes.length; i++) {
+            byte opcode = opcodes[i];
+            sb.append(addresses[i]).append(": ").append(VM.name(opcode));
+            if (opcode == VM.PUSH || opcode == VM.FLAG_IFZERO || opcode == VM.FLAG_IFNZERO) {
+                sb.append(" ").append(operands[i]);
+            } else if (VM.checksRoom(opcode) || opcode == VM.CHECK || opcode == VM.CALLCHECK) {
+                sb.append(" ").append(operands[i]).append(" ").append(targets[i]);
+            }
+            if (VM.isBranch(opcode)) {
+                sb.append(" <").append(addresses[targets[i]]).append(">");
+            }
+            if (costs[i] != 1) {
+                sb.append(" (").append(costs[i]).append(")");
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+}
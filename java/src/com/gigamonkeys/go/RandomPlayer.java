@@ -1,5 +1,6 @@
 package com.gigamonkeys.go;
 
+import java.util.BitSet;
 import java.util.Random;
 
 /*
@@ -14,18 +15,23 @@ public class RandomPlayer extends AbstractPlayer {
     private final Random r = new Random();
 
     public boolean move() {
-        Board b = getBoard();
-
-        for (int i = 0; i < b.positions; i++) {
-            int p = r.nextInt(b.positions);
-            try {
-                b.placeStone(getColor(), p);
-                return true;
-            } catch (IllegalMoveException ime) {
-                // ignore -- we'll pass if we can't find a legal move.
-            }
+        Board b      = getBoard();
+        BitSet legal = b.legalMoves(getColor());
+        int count    = legal.cardinality();
+
+        // We used to try up to b.positions random points and pass if
+        // none of them were legal. Pass with the same probability so
+        // games still end once legal moves get scarce, rather than
+        // only when there are none at all.
+        double miss = 1.0 - (double)count / b.positions;
+        if (count == 0 || r.nextDouble() < Math.pow(miss, b.positions)) return false;
+
+        int p = legal.nextSetBit(0);
+        for (int i = r.nextInt(count); i > 0; i--) {
+            p = legal.nextSetBit(p + 1);
         }
-        return false;
+        b.placeStone(getColor(), p);
+        return true;
     }
 
 }
@@ -5,18 +5,39 @@ package com.gigamonkeys.go;
  */
 
 /**
- * Simple struct to represent the result of a game.
+ * Simple struct to represent the result of a game, or the state of
+ * one in progress. black and white are the number of stones of each
+ * color on the board; blackCaptured and whiteCaptured the number of
+ * stones of each color that have been captured.
  */
 public class Score {
 
     public final Color winner;
     public final int black;
     public final int white;
+    public final int blackCaptured;
+    public final int whiteCaptured;
+    public final double komi;
+
+    public Score(Color winner, int black, int white, int blackCaptured, int whiteCaptured, double komi) {
+        this.winner        = winner;
+        this.black         = black;
+        this.white         = white;
+        this.blackCaptured = blackCaptured;
+        this.whiteCaptured = whiteCaptured;
+        this.komi          = komi;
+    }
 
     public Score(Color winner, int black, int white) {
-        this.winner = winner;
-        this.black = black;
-        this.white = white;
+        this(winner, black, white, 0, 0, 0.0);
+    }
+
+    /**
+     * Black's lead over white after komi; negative when white is
+     * ahead.
+     */
+    public double margin() {
+        return black - white - komi;
     }
 
 }
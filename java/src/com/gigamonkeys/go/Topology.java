@@ -0,0 +1,86 @@
+package com.gigamonkeys.go;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Precomputed geometry of a board of a given size. One instance per
+ * size is shared by every Board, Gradients, and GameContext of that
+ * size so the inner loops can walk neighbors and move around the
+ * board with plain array lookups instead of allocating lists and
+ * doing division and remainder on every step.
+ */
+public final class Topology {
+
+    private static Topology[] cache = new Topology[20];
+
+    public final int size;
+    public final int positions;
+
+    /**
+     * The neighbors of point p are adjacent[4 * p] through
+     * adjacent[4 * p + degree[p] - 1], in north, south, west, east
+     * order. The unused slots of edge and corner points are -1.
+     */
+    public final int[] adjacent;
+    public final int[] degree;
+
+    /**
+     * The point reached by taking one step from p in a direction (0
+     * north, 1 east, 2 south, 3 west) is step[4 * p + direction]. At
+     * the edge of the board it's p itself.
+     */
+    public final int[] step;
+
+    /**
+     * Column and row of each point, i.e. p % size and p / size.
+     */
+    public final int[] column;
+    public final int[] row;
+
+    private Topology(int size) {
+        this.size      = size;
+        this.positions = size * size;
+        this.adjacent  = new int[4 * positions];
+        this.degree    = new int[positions];
+        this.step      = new int[4 * positions];
+        this.column    = new int[positions];
+        this.row       = new int[positions];
+
+        int max = size - 1;
+
+        for (int p = 0; p < positions; p++) {
+            int x = p % size;
+            int y = p / size;
+            column[p] = x;
+            row[p]    = y;
+
+            int i = 4 * p;
+            int d = 0;
+            if (y > 0)   adjacent[i + d++] = p - size; // North
+            if (y < max) adjacent[i + d++] = p + size; // South
+            if (x > 0)   adjacent[i + d++] = p - 1;    // West
+            if (x < max) adjacent[i + d++] = p + 1;    // East
+            degree[p] = d;
+            while (d < 4) adjacent[i + d++] = -1;
+
+            step[i + 0] = y > 0   ? p - size : p;
+            step[i + 1] = x < max ? p + 1    : p;
+            step[i + 2] = y < max ? p + size : p;
+            step[i + 3] = x > 0   ? p - 1    : p;
+        }
+    }
+
+    public static synchronized Topology forSize(int size) {
+        if (size >= cache.length) {
+            Topology[] tmp = new Topology[size + 1];
+            System.arraycopy(cache, 0, tmp, 0, cache.length);
+            cache = tmp;
+        }
+        if (cache[size] == null) {
+            cache[size] = new Topology(size);
+        }
+        return cache[size];
+    }
+}
@@ -1,11 +1,11 @@
 package com.gigamonkeys.go;
 
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
+import static com.gigamonkeys.go.GameContext.*;
+
 /*
  * Copyright (c) 2013 Peter Seibel
  */
@@ -28,7 +28,9 @@ public class VM {
 
     // N.B. Certain aspects of the structure of this file are
     // necessary for the script vm.pl to be able to act as a special
-    // purpose macro processor for this one file. Lovely, I know.
+    // purpose macro processor for this one file. It also copies the
+    // cases of the interpreter's switch into Profile so edit them
+    // here and run make vm. Lovely, I know.
 
     // No op.
     public final static byte NOP             = 0;
@@ -165,17 +167,99 @@ public class VM {
         "CORNER_GRADIENT",
     };
 
+    // Internal opcodes. These are never generated from genes, only by
+    // the Optimizer, so they live above the genome opcode space and
+    // aren't in NAMES.
+    final static byte SKIP          = 64; // Nothing. Stands in for ops with no effect.
+    final static byte CHECK         = 65; // Stop unless sp >= targets[i] and there's room to push operand values.
+    final static byte PUSHK         = 66; // PUSH operand after checking for room for targets[i] values.
+
+    // Fused ops (superinstructions) standing for common sequences of
+    // genome ops so they only cost one trip through the switch. The
+    // ones that branch have to stay together; see isBranch.
+    final static byte ADDK          = 67; // PUSH operand; ADD. Checks for room for targets[i] values.
+    final static byte POSITION_MODK = 68; // POSITION; PUSH operand; MOD. Checks for room for targets[i] values.
+    final static byte DUP_IFZERO    = 69; // DUP; IFZERO
+    final static byte DUP_IFNZERO   = 70; // DUP; IFNZERO
+    final static byte FLAG_IFZERO   = 71; // MINE, THEIRS, or EMPTY, picked by bit number operand; IFZERO
+    final static byte FLAG_IFNZERO  = 72; // Ditto; IFNZERO
+
+    // Only generated by the Verifier.
+    final static byte CALLCHECK     = 73; // CHECK for the call stack.
+
+    private final static String[] INTERNAL_NAMES = {
+        "SKIP",
+        "CHECK",
+        "PUSHK",
+        "ADDK",
+        "POSITION_MODK",
+        "DUP_IFZERO",
+        "DUP_IFNZERO",
+        "FLAG_IFZERO",
+        "FLAG_IFNZERO",
+        "CALLCHECK",
+    };
+
+    /**
+     * The return address a CALL pushes when there's no op after it,
+     * i.e. when it's the last op of the genome. The linked Ops we used
+     * to run pushed the CALL's null next op, and a RET that popped it
+     * just carried on with the op after the RET, so that's what a RET
+     * that pops NOWHERE does. Such CALLs have NOWHERE as their operand.
+     */
+    final static int NOWHERE = -1;
+
     private final int stackDepth;
     private final int callstackDepth;
     private final int memorySize;
     private final int maxCycles;
-    private final Random random = new Random();
+    private final Random random;
+    private final boolean reference;
+    private final Profile profile;
+
+    // Each thread running critters gets its own reusable frame.
+    private final ThreadLocal<Frame> frames = new ThreadLocal<Frame>() {
+        @Override protected Frame initialValue() {
+            return new Frame(stackDepth, callstackDepth, memorySize);
+        }
+    };
 
     VM(int stackDepth, int callstackDepth, int memorySize, int maxCycles) {
+        this(stackDepth, callstackDepth, memorySize, maxCycles, new Random());
+    }
+
+    VM(int stackDepth, int callstackDepth, int memorySize, int maxCycles, Random random) {
+        this(stackDepth, callstackDepth, memorySize, maxCycles, random, false);
+    }
+
+    /*
+     * A reference VM runs programs just as they're compiled: it
+     * doesn't verify them, instead relying on catching the exceptions
+     * when they run off the ends of the stacks, and it doesn't
+     * memoize results. Much slower but handy for checking the rest.
+     */
+    VM(int stackDepth, int callstackDepth, int memorySize, int maxCycles, Random random, boolean reference) {
+        this(stackDepth, callstackDepth, memorySize, maxCycles, random, reference, null);
+    }
+
+    /**
+     * A profiling VM runs every critter in Profile's own interpreter
+     * and records what it does in profile. Critters end up in the
+     * same places as with any other VM, just more slowly.
+     */
+    VM(int stackDepth, int callstackDepth, int memorySize, int maxCycles, Random random, Profile profile) {
+        this(stackDepth, callstackDepth, memorySize, maxCycles, random, false, profile);
+    }
+
+    private VM(int stackDepth, int callstackDepth, int memorySize, int maxCycles, Random random,
+               boolean reference, Profile profile) {
         this.stackDepth     = stackDepth;
         this.callstackDepth = callstackDepth;
         this.memorySize     = memorySize;
         this.maxCycles      = maxCycles;
+        this.random         = random;
+        this.reference      = reference;
+        this.profile        = profile;
     }
 
     /**
@@ -223,17 +307,51 @@ public class VM {
         // the possible addresses so that anything that jumps past the
         // end of the bytecodes will instead jump to the STOP.
         ops.add(new Op(STOP, bytecodes.length));
+        int[] index = addressIndex(ops);
         for (Op op: ops) {
             if (op.isBranchOrJump()) {
-                op.next2 = findTargetOp(Math.min(op.operand, bytecodes.length), ops);
+                op.next2 = ops.get(index[Math.min(op.operand, bytecodes.length)]);
             }
         }
         return ops;
     }
 
-    private static Op findTargetOp(int address, List<Op> ops) {
-        int pos = Collections.binarySearch(ops, new Op(NOP, address));
-        return pos >= 0 ? ops.get(pos) : ops.get(-1 * (pos + 1));
+    /**
+     * Given compiled ops, sorted by address and ending with the STOP
+     * added by compile, make a table mapping every address up to
+     * that of the STOP to the index of the first op at or after it.
+     */
+    static int[] addressIndex(List<Op> ops) {
+        int last    = ops.get(ops.size() - 1).address;
+        int[] index = new int[last + 1];
+        int i = 0;
+        for (int address = 0; address <= last; address++) {
+            while (ops.get(i).address < address) i++;
+            index[address] = i;
+        }
+        return index;
+    }
+
+    /**
+     * The name of a genome or internal opcode.
+     */
+    static String name(byte opcode) {
+        return opcode < SKIP ? NAMES[opcode] : INTERNAL_NAMES[opcode - SKIP];
+    }
+
+    /**
+     * Whether the opcode is one whose Program target is an op index.
+     */
+    static boolean isBranch(byte opcode) {
+        return (IFZERO <= opcode && opcode <= CALL) || (DUP_IFZERO <= opcode && opcode <= FLAG_IFNZERO);
+    }
+
+    /**
+     * Whether the opcode is one whose Program target is the number of
+     * values there must be room on the stack for.
+     */
+    static boolean checksRoom(byte opcode) {
+        return opcode == PUSHK || opcode == ADDK || opcode == POSITION_MODK;
     }
 
     private static boolean isOpcode(byte b) {
@@ -243,6 +361,31 @@ public class VM {
         return NOP < b && b <= EMPTY_GRADIENT;
     }
 
+    /**
+     * Compile the critter's program to JVM bytecode so subsequent
+     * calls to execute run that instead of interpreting it. Worth it
+     * for critters that are going to be run a lot. Returns false if
+     * the program couldn't be compiled, in which case the critter
+     * will continue to be interpreted. A reference VM never compiles
+     * anything: Jit only handles verified programs and the compiled
+     * code is cached on the critter where other VMs would find it.
+     */
+    public boolean jit(Critter critter) {
+        if (reference) return false;
+        Program program = program(critter);
+        if (critter.getCompiled() == null) {
+            critter.setCompiled(Jit.compile(program));
+        }
+        return critter.getCompiled() != null;
+    }
+
+    /*
+     * The program we actually run for the critter.
+     */
+    private Program program(Critter critter) {
+        return reference ? critter.getProgram() : critter.verified(stackDepth, callstackDepth);
+    }
+
     /*
      * Execute the given code for a particular game state. Since we
      * are going to run a whole bunch of critters for the same state,
@@ -251,45 +394,157 @@ public class VM {
      * all the information this method needs readily at hand.
      */
     public int execute(Critter critter, GameContext context) {
+        return execute(critter, context.topology.step, context.getPerception(), context);
+    }
+
+    /**
+     * Execute the given critter against a published snapshot. Safe to
+     * call from any thread, as long as each critter is only run by
+     * one thread at a time.
+     */
+    public int execute(Critter critter, ContextSnapshot snapshot) {
+        return execute(critter, snapshot.topology.step, snapshot.perception, snapshot);
+    }
+
+    private int execute(Critter critter, int[] step, int[] perception, Perception source) {
+        long result = run(critter, critter.getPosition(), critter.getDirection(), step, perception, source, frames.get());
+        critter.position((int)(result >>> 32), (int)result);
+        return critter.getPosition();
+    }
+
+    /**
+     * Run a whole population for one move. Critter i starts at
+     * positions[i] facing directions[i] and the two arrays are
+     * updated in place with where each critter ends up; the critters'
+     * own positions and directions are left alone. Returns positions.
+     * Directions must be 0-3. The critters are run in order so the
+     * results, random numbers and all, are the same as running them
+     * one at a time.
+     */
+    public int[] execute(Critter[] critters, int[] positions, int[] directions, GameContext context) {
+        return execute(critters, positions, directions, context.topology.step, context.getPerception(), context);
+    }
+
+    /**
+     * Run a whole population against a published snapshot. See
+     * execute(Critter[], int[], int[], GameContext).
+     */
+    public int[] execute(Critter[] critters, int[] positions, int[] directions, ContextSnapshot snapshot) {
+        return execute(critters, positions, directions, snapshot.topology.step, snapshot.perception, snapshot);
+    }
+
+    private int[] execute(Critter[] critters, int[] positions, int[] directions,
+                          int[] step, int[] perception, Perception source) {
+        if (positions.length != critters.length || directions.length != critters.length) {
+            throw new IllegalArgumentException("Need one position and direction per critter.");
+        }
+        for (int direction: directions) {
+            if ((direction & ~3) != 0) {
+                throw new IllegalArgumentException("Direction must be 0-3: " + direction);
+            }
+        }
+        Frame frame = frames.get();
+        for (int i = 0; i < critters.length; i++) {
+            long result   = run(critters[i], positions[i], directions[i], step, perception, source, frame);
+            positions[i]  = (int)(result >>> 32);
+            directions[i] = (int)result;
+        }
+        return positions;
+    }
+
+    /*
+     * Run the critter from the given position and direction,
+     * returning where it ends up packed into a long the same way
+     * CompiledProgram.run does. Critters whose programs don't look at
+     * the board or use RAND will always end up in the same place from
+     * a given start so we only actually run them once per start.
+     */
+    private long run(Critter critter, int position, int direction, int[] step, int[] perception,
+                     Perception source, Frame frame) {
+        if (profile != null) {
+            return profile.run(critter.unoptimized(), position, direction, step, perception,
+                               source, frame, random, maxCycles);
+        }
+
+        Program program = program(critter);
+        if (reference || !program.memoizable) {
+            return run(critter, program, position, direction, step, perception, source, frame);
+        }
+
+        int[] memo = critter.memo(stackDepth, callstackDepth, memorySize, maxCycles, step);
+        int start  = (position << 2) | direction;
+        if (memo[start] == -1) {
+            long result = run(critter, program, position, direction, step, perception, source, frame);
+            memo[start] = ((int)(result >>> 32) << 2) | (int)result;
+        }
+        return ((long)(memo[start] >>> 2) << 32) | (memo[start] & 3);
+    }
+
+    /*
+     * The interpreter proper. The source of the perception buffer
+     * has to be asked to update each gradient before we look at it.
+     */
+    private long run(Critter critter, Program program, int position, int direction, int[] step, int[] perception,
+                     Perception source, Frame frame) {
         int tos        = 0;
         int sp         = 0;
         int csp        = 0;
         int cycles     = 0;
 
-        int[] stack    = new int[stackDepth];
-        Op[] callstack = new Op[callstackDepth];
-        int[] memory   = new int[memorySize];
+        frame.reset(program);
+
+        int[] stack     = frame.stack;
+        int[] callstack = frame.callstack;
+        int[] memory    = frame.memory;
+
+        // Checking cycles += cost > limit after the fact is the same
+        // as checking cycles++ > maxCycles before each of the original
+        // ops.
+        int limit       = maxCycles == Integer.MAX_VALUE ? maxCycles : maxCycles + 1;
+
+        CompiledProgram compiled = reference ? null : critter.getCompiled();
+        if (compiled != null) {
+            return compiled.run(position, direction, step, perception, source,
+                                stack, callstack, memory, random, limit);
+        }
 
         int tmp;
 
-        Op op         = critter.getCode();
-        int position  = critter.getPosition();
-        int direction = critter.getDirection();
+        byte[] opcodes  = program.opcodes;
+        int[] operands  = program.operands;
+        int[] targets   = program.targets;
+        int[] costs     = program.costs;
+        int pc          = 0;
 
-        int size             = context.size;
-        BitSet mine          = context.getMine();
-        BitSet theirs        = context.getTheirs();
-        BitSet empty         = context.getEmpty();
-        int[] mineGradient   = context.getMineGradient();
-        int[] theirsGradient = context.getTheirsGradient();
-        int[] emptyGradient  = context.getEmptyGradinet();
-        int[] cornerGradient = context.getCornerGradient();
+        // The gradients are only brought up to date when asked for so
+        // don't ask unless the critter actually looks, and then only
+        // once per gradient.
+        boolean mineReady    = false;
+        boolean theirsReady  = false;
+        boolean emptyReady   = false;
 
         try {
             execute:
-            while (op != null) {
-                if (cycles++ > maxCycles) break;
+            while (true) {
+                // The program always ends with a STOP so pc can't run
+                // off the end. By default we go on to the next op;
+                // branches overwrite pc.
+                int op = pc++;
 
-                Op next = null;
+                if ((cycles += costs[op]) > limit) break;
 
-                switch (op.opcode) {
+                switch (opcodes[op]) {
                 case NOP:
                     break;
                 case LOAD:
-                    tos = memory[tos % memory.length];
+                    tmp = tos % memory.length;
+                    if (tmp < 0) break execute;
+                    tos = memory[tmp];
                     break;
                 case STORE:
-                    memory[tos % memory.length] = stack[--sp];
+                    tmp = tos % memory.length;
+                    if (tmp < 0) break execute;
+                    memory[tmp] = stack[--sp];
                     tos = stack[--sp];
                     break;
                 case ADD:
@@ -320,20 +575,9 @@ public class VM {
                     tos = random.nextInt();
                     break;
                 case FORWARD:
-                    switch (direction) {
-                    case 0: // North
-                        if (position >= size) position -= size;
-                        break;
-                    case 1: // East
-                        if ((position % size) < (size - 1)) position += 1;
-                        break;
-                    case 2: // South
-                        if (position < (size * (size - 1))) position += size;
-                        break;
-                    case 3: // West
-                        if ((position % size) > 0) position -= 1;
-                        break;
-                    }
+                    // Directions are always 0-3: north, east, south,
+                    // west. Stepping off the edge leaves us in place.
+                    position = step[(position << 2) | direction];
                     break;
                 case TURN_AROUND:
                     direction = (direction + 2) % 4;
@@ -431,78 +675,126 @@ public class VM {
                     break;
                 case PUSH:
                     stack[sp++] = tos;
-                    tos = op.operand;
+                    tos = operands[op];
                     break;
                 case IFZERO:
-                    next = tos == 0 ? op.next2 : op.next;
+                    if (tos == 0) pc = targets[op];
                     tos = stack[--sp];
                     break;
                 case IFPOS:
-                    next = tos > 0 ? op.next2 : op.next;
+                    if (tos > 0) pc = targets[op];
                     tos = stack[--sp];
                     break;
                 case IFNEG:
-                    next = tos < 0 ? op.next2 : op.next;
+                    if (tos < 0) pc = targets[op];
                     tos = stack[--sp];
                     break;
                 case IFNZERO:
-                    next = tos != 0 ? op.next2 : op.next;
+                    if (tos != 0) pc = targets[op];
                     tos = stack[--sp];
                     break;
                 case IFNPOS:
-                    next = tos <= 0 ? op.next2 : op.next;
+                    if (tos <= 0) pc = targets[op];
                     tos = stack[--sp];
                     break;
                 case IFNNEG:
-                    next = tos >= 0 ? op.next2 : op.next;
+                    if (tos >= 0) pc = targets[op];
                     tos = stack[--sp];
                     break;
                 case GOTO:
-                    next = op.next2;
+                    pc = targets[op];
                     break;
                 case CALL:
-                    callstack[csp++] = op.next;
-                    next = op.next2;
+                    callstack[csp++] = operands[op] == NOWHERE ? NOWHERE : pc;
+                    pc = targets[op];
                     break;
                 case RET:
-                    next = callstack[--csp];
+                    tmp = callstack[--csp];
+                    if (tmp != NOWHERE) pc = tmp;
                     break;
                 case STOP:
                     break execute;
                 case MINE:
                     stack[sp++] = tos;
-                    tos = mine.get(position) ? 1 : 0;
+                    tos = (perception[position * STRIDE + FLAGS_SLOT] >>> MINE_BIT) & 1;
                     break;
                 case THEIRS:
                     stack[sp++] = tos;
-                    tos = theirs.get(position) ? 1 : 0;
+                    tos = (perception[position * STRIDE + FLAGS_SLOT] >>> THEIRS_BIT) & 1;
                     break;
                 case EMPTY:
                     stack[sp++] = tos;
-                    tos = empty.get(position) ? 1 : 0;
+                    tos = (perception[position * STRIDE + FLAGS_SLOT] >>> EMPTY_BIT) & 1;
                     break;
                 case MINE_GRADIENT:
                     stack[sp++] = tos;
-                    tos = mineGradient[position];
+                    if (!mineReady) {
+                        source.updateGradient(MINE_GRADIENT_SLOT);
+                        mineReady = true;
+                    }
+                    tos = perception[position * STRIDE + MINE_GRADIENT_SLOT];
                     break;
                 case THEIR_GRADIENT:
                     stack[sp++] = tos;
-                    tos = theirsGradient[position];
+                    if (!theirsReady) {
+                        source.updateGradient(THEIRS_GRADIENT_SLOT);
+                        theirsReady = true;
+                    }
+                    tos = perception[position * STRIDE + THEIRS_GRADIENT_SLOT];
                     break;
                 case EMPTY_GRADIENT:
                     stack[sp++] = tos;
-                    tos = emptyGradient[position];
+                    if (!emptyReady) {
+                        source.updateGradient(EMPTY_GRADIENT_SLOT);
+                        emptyReady = true;
+                    }
+                    tos = perception[position * STRIDE + EMPTY_GRADIENT_SLOT];
                     break;
                 case CORNER_GRADIENT:
                     stack[sp++] = tos;
-                    tos = cornerGradient[position];
+                    tos = perception[position * STRIDE + CORNER_GRADIENT_SLOT];
+                    break;
+                case SKIP:
+                    break;
+                case CHECK:
+                    if (sp < targets[op] || sp + operands[op] > stack.length) break execute;
+                    break;
+                case PUSHK:
+                    if (sp < 0 || sp + targets[op] > stack.length) break execute;
+                    stack[sp++] = tos;
+                    tos = operands[op];
+                    break;
+                case ADDK:
+                    if (sp < 0 || sp + targets[op] > stack.length) break execute;
+                    tos += operands[op];
+                    break;
+                case POSITION_MODK:
+                    if (sp < 0 || sp + targets[op] > stack.length) break execute;
+                    stack[sp++] = tos;
+                    tos = position == 0 ? 0 : operands[op] % position;
+                    break;
+                case DUP_IFZERO:
+                    if (sp < 0 || sp >= stack.length) break execute;
+                    if (tos == 0) pc = targets[op];
+                    break;
+                case DUP_IFNZERO:
+                    if (sp < 0 || sp >= stack.length) break execute;
+                    if (tos != 0) pc = targets[op];
+                    break;
+                case FLAG_IFZERO:
+                    if (sp < 0 || sp >= stack.length) break execute;
+                    if (((perception[position * STRIDE + FLAGS_SLOT] >>> operands[op]) & 1) == 0) pc = targets[op];
+                    break;
+                case FLAG_IFNZERO:
+                    if (sp < 0 || sp >= stack.length) break execute;
+                    if (((perception[position * STRIDE + FLAGS_SLOT] >>> operands[op]) & 1) != 0) pc = targets[op];
+                    break;
+                case CALLCHECK:
+                    if (csp < targets[op] || csp + operands[op] > callstack.length) break execute;
                     break;
                 default:
-                    throw new RuntimeException("Illegal opcode: " + op.opcode);
+                    throw new RuntimeException("Illegal opcode: " + opcodes[op]);
                 }
-                // Default case, if next hasn't been set, is to simply
-                // move to next instruction.
-                op = next != null ? next : op.next;
             }
         } catch (ArrayIndexOutOfBoundsException aioobe) {
             // Unless we've screwed something up, this can only happen
@@ -511,9 +803,11 @@ public class VM {
             // way of stoping and return the current position. (This is
             // because all other array accesses are constrained such
             // that the indices should always--modulo bugs--be legit.)
+            // Verified programs check before they can get this far
+            // so if we're verifying something has gone wrong.
+            if (!reference) throw new IllegalStateException("Verified program ran off a stack.", aioobe);
         }
-        critter.position(position, direction);
-        return position;
+        return ((long)position << 32) | (direction & 0xffffffffL);
     }
 
     // [1] see http://galileo.phys.virginia.edu/classes/551.jvn.fall01/primer.htm#param)
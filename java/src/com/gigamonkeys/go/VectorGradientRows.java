@@ -0,0 +1,39 @@
+package com.gigamonkeys.go;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * GradientRows using SIMD lanes via the Vector API. Board rows are
+ * short (at most 19 points) so we do as many full vectors as fit and
+ * finish the row with the scalar loop rather than using masks, which
+ * are slow on hardware without native mask registers.
+ */
+final class VectorGradientRows extends GradientRows {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override void add(int[] values, int v, int[] kernel, int k, int length) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length()) {
+            IntVector a = IntVector.fromArray(SPECIES, values, v + i);
+            IntVector b = IntVector.fromArray(SPECIES, kernel, k + i);
+            a.add(b).intoArray(values, v + i);
+        }
+        for (; i < length; i++) values[v + i] += kernel[k + i];
+    }
+
+    @Override void subtract(int[] values, int v, int[] kernel, int k, int length) {
+        int i = 0;
+        for (int upper = SPECIES.loopBound(length); i < upper; i += SPECIES.length()) {
+            IntVector a = IntVector.fromArray(SPECIES, values, v + i);
+            IntVector b = IntVector.fromArray(SPECIES, kernel, k + i);
+            a.sub(b).intoArray(values, v + i);
+        }
+        for (; i < length; i++) values[v + i] -= kernel[k + i];
+    }
+}
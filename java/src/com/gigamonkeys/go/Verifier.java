@@ -0,0 +1,482 @@
+package com.gigamonkeys.go;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.gigamonkeys.go.VM.*;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Work out, for a particular stack depth and call stack depth, which
+ * ops in a Program can overflow or underflow one of the stacks and
+ * rewrite the program so none of them ever has to. Random critters
+ * run off one end of the stack or the other all the time and catching
+ * the resulting ArrayIndexOutOfBoundsException is very slow compared
+ * to just checking.
+ *
+ * We compute the range of values sp and csp can have on the way into
+ * each op. (It's a small range: sp can't go above the stack depth
+ * without overflowing and once it's negative nothing but overflowing
+ * can bring it back up, so all values below -depth act alike.) Then
+ * each op is one of:
+ *
+ *  - safe for every value in its range, in which case it's left
+ *    alone;
+ *
+ *  - safe for none of them, so it always stops the critter, in which
+ *    case it becomes a STOP with the same cost; or
+ *
+ *  - safe for some, in which case we put a CHECK (or CALLCHECK) in
+ *    front of it that stops the critter if it would fail.
+ *
+ * Ops we never reach are dropped. LOAD and STORE, which can also run
+ * off the end of memory, check for that themselves since we don't
+ * know anything about the values on the stack.
+ *
+ * Stopping before an op rather than in the middle of it is the same
+ * since no op that uses the stacks moves the critter or uses the
+ * random number generator before it gets to the stack. And a CHECK
+ * costs nothing so the op after it still gets to check the cycle
+ * limit first.
+ */
+final class Verifier {
+
+    private Verifier() {}
+
+    static Program verify(Program program, int stackDepth, int callstackDepth) {
+        return new Ranges(program, stackDepth, callstackDepth).verified();
+    }
+
+    /*
+     * Lowest sp at which the op can run without failing. (MUL, thanks
+     * to its stack[-sp], wants sp <= 0.)
+     */
+    static int low(byte opcode, int target, int depth) {
+        switch (opcode) {
+        case STORE:
+            return 2;
+        case ADD:
+        case SUB:
+        case DIV:
+        case MOD:
+        case BOOLE_2:
+        case BOOLE_ANDC1:
+        case BOOLE_ANDC2:
+        case BOOLE_AND:
+        case BOOLE_C2:
+        case BOOLE_EQV:
+        case BOOLE_IOR:
+        case BOOLE_NAND:
+        case BOOLE_NOR:
+        case BOOLE_ORC1:
+        case BOOLE_ORC2:
+        case BOOLE_XOR:
+        case POP:
+        case SWAP:
+        case OVER:
+        case TUCK:
+        case IFZERO:
+        case IFPOS:
+        case IFNEG:
+        case IFNZERO:
+        case IFNPOS:
+        case IFNNEG:
+            return 1;
+        case ROT:
+            return 3;
+        case MUL:
+            return 1 - depth;
+        case CHECK:
+            return target;
+        case RAND:
+        case POSITION:
+        case DUP:
+        case PUSH:
+        case MINE:
+        case THEIRS:
+        case EMPTY:
+        case MINE_GRADIENT:
+        case THEIR_GRADIENT:
+        case EMPTY_GRADIENT:
+        case CORNER_GRADIENT:
+        case PUSHK:
+        case ADDK:
+        case POSITION_MODK:
+        case DUP_IFZERO:
+        case DUP_IFNZERO:
+        case FLAG_IFZERO:
+        case FLAG_IFNZERO:
+            return 0;
+        default:
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    /*
+     * Highest sp at which the op can run without failing.
+     */
+    static int high(byte opcode, int operand, int target, int depth) {
+        switch (opcode) {
+        case STORE:
+        case ADD:
+        case SUB:
+        case DIV:
+        case MOD:
+        case BOOLE_2:
+        case BOOLE_ANDC1:
+        case BOOLE_ANDC2:
+        case BOOLE_AND:
+        case BOOLE_C2:
+        case BOOLE_EQV:
+        case BOOLE_IOR:
+        case BOOLE_NAND:
+        case BOOLE_NOR:
+        case BOOLE_ORC1:
+        case BOOLE_ORC2:
+        case BOOLE_XOR:
+        case POP:
+        case SWAP:
+        case ROT:
+        case IFZERO:
+        case IFPOS:
+        case IFNEG:
+        case IFNZERO:
+        case IFNPOS:
+        case IFNNEG:
+            return depth;
+        case MUL:
+            return 0;
+        case RAND:
+        case POSITION:
+        case DUP:
+        case OVER:
+        case TUCK:
+        case PUSH:
+        case MINE:
+        case THEIRS:
+        case EMPTY:
+        case MINE_GRADIENT:
+        case THEIR_GRADIENT:
+        case EMPTY_GRADIENT:
+        case CORNER_GRADIENT:
+        case DUP_IFZERO:
+        case DUP_IFNZERO:
+        case FLAG_IFZERO:
+        case FLAG_IFNZERO:
+            return depth - 1;
+        case CHECK:
+            return depth - operand;
+        case PUSHK:
+        case ADDK:
+        case POSITION_MODK:
+            return depth - target;
+        default:
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /*
+     * How much the op changes sp by if it doesn't fail.
+     */
+    private static int delta(byte opcode) {
+        switch (opcode) {
+        case STORE:
+            return -2;
+        case ADD:
+        case SUB:
+        case DIV:
+        case MOD:
+        case BOOLE_1:
+        case BOOLE_2:
+        case BOOLE_ANDC1:
+        case BOOLE_ANDC2:
+        case BOOLE_AND:
+        case BOOLE_C1:
+        case BOOLE_C2:
+        case BOOLE_CLR:
+        case BOOLE_EQV:
+        case BOOLE_IOR:
+        case BOOLE_NAND:
+        case BOOLE_NOR:
+        case BOOLE_ORC1:
+        case BOOLE_ORC2:
+        case BOOLE_SET:
+        case BOOLE_XOR:
+        case POP:
+        case IFZERO:
+        case IFPOS:
+        case IFNEG:
+        case IFNZERO:
+        case IFNPOS:
+        case IFNNEG:
+            return -1;
+        case RAND:
+        case POSITION:
+        case DUP:
+        case OVER:
+        case TUCK:
+        case PUSH:
+        case MINE:
+        case THEIRS:
+        case EMPTY:
+        case MINE_GRADIENT:
+        case THEIR_GRADIENT:
+        case EMPTY_GRADIENT:
+        case CORNER_GRADIENT:
+        case PUSHK:
+        case POSITION_MODK:
+            return 1;
+        default:
+            return 0;
+        }
+    }
+
+    /*
+     * Ops that already check for room themselves and stop explicitly
+     * rather than failing.
+     */
+    private static boolean checksItself(byte opcode) {
+        return opcode == CHECK || opcode >= PUSHK;
+    }
+
+    /**
+     * The ranges of sp and csp on the way into each op, found by
+     * propagating them from the first op until nothing changes.
+     * Unreached ops have empty ranges, i.e. lo > hi.
+     */
+    private static class Ranges {
+
+        private final Program program;
+        private final int depth;
+        private final int callDepth;
+        private final int n;
+
+        private final int[] spLo;
+        private final int[] spHi;
+        private final int[] cspLo;
+        private final int[] cspHi;
+
+        // The range of csp at each op after a CALL, i.e. the range it
+        // will have if a RET returns there, and the range of sp at
+        // all RETs.
+        private final int[] returnLo;
+        private final int[] returnHi;
+        private int retLo = Integer.MAX_VALUE;
+        private int retHi = Integer.MIN_VALUE;
+
+        // Likewise the range of csp at CALLs that push NOWHERE, which
+        // is what it will be after any RET that pops it.
+        private int nowhereLo = Integer.MAX_VALUE;
+        private int nowhereHi = Integer.MIN_VALUE;
+
+        private final List<Integer> returns = new ArrayList<Integer>();
+        private final List<Integer> rets    = new ArrayList<Integer>();
+        private final List<Integer> work    = new ArrayList<Integer>();
+        private final boolean[] queued;
+
+        Ranges(Program program, int depth, int callDepth) {
+            this.program   = program;
+            this.depth     = depth;
+            this.callDepth = callDepth;
+            this.n         = program.size();
+            this.spLo      = empty(n, Integer.MAX_VALUE);
+            this.spHi      = empty(n, Integer.MIN_VALUE);
+            this.cspLo     = empty(n, Integer.MAX_VALUE);
+            this.cspHi     = empty(n, Integer.MIN_VALUE);
+            this.returnLo  = empty(n, Integer.MAX_VALUE);
+            this.returnHi  = empty(n, Integer.MIN_VALUE);
+            this.queued    = new boolean[n];
+
+            for (int i = 0; i < n; i++) {
+                if (program.opcodes[i] == CALL) returns.add(i + 1);
+                if (program.opcodes[i] == RET) rets.add(i);
+            }
+
+            join(0, 0, 0, 0, 0);
+            while (!work.isEmpty()) {
+                int i = work.remove(work.size() - 1);
+                queued[i] = false;
+                propagate(i);
+            }
+        }
+
+        private static int[] empty(int n, int value) {
+            int[] a = new int[n];
+            Arrays.fill(a, value);
+            return a;
+        }
+
+        private void join(int i, int lo, int hi, int clo, int chi) {
+            if (lo > hi || clo > chi) return;
+            lo = Math.max(lo, -depth);
+            hi = Math.max(hi, -depth);
+            if (lo < spLo[i] || hi > spHi[i] || clo < cspLo[i] || chi > cspHi[i]) {
+                spLo[i]  = Math.min(spLo[i], lo);
+                spHi[i]  = Math.max(spHi[i], hi);
+                cspLo[i] = Math.min(cspLo[i], clo);
+                cspHi[i] = Math.max(cspHi[i], chi);
+                if (!queued[i]) {
+                    queued[i] = true;
+                    work.add(i);
+                }
+            }
+        }
+
+        // The part of op i's sp range in which it doesn't fail.
+        private int safeLo(int i) {
+            return Math.max(spLo[i], low(program.opcodes[i], program.targets[i], depth));
+        }
+
+        private int safeHi(int i) {
+            return Math.min(spHi[i], high(program.opcodes[i], program.operands[i], program.targets[i], depth));
+        }
+
+        // Likewise for csp.
+        private int safeCallLo(int i) {
+            return program.opcodes[i] == RET ? Math.max(cspLo[i], 1) : cspLo[i];
+        }
+
+        private int safeCallHi(int i) {
+            return program.opcodes[i] == CALL ? Math.min(cspHi[i], callDepth - 1) : cspHi[i];
+        }
+
+        boolean reached(int i) {
+            return spLo[i] <= spHi[i];
+        }
+
+        boolean alwaysFails(int i) {
+            return safeLo(i) > safeHi(i) || safeCallLo(i) > safeCallHi(i);
+        }
+
+        boolean mightFail(int i) {
+            return safeLo(i) > spLo[i] || safeHi(i) < spHi[i];
+        }
+
+        boolean mightFailCall(int i) {
+            return safeCallLo(i) > cspLo[i] || safeCallHi(i) < cspHi[i];
+        }
+
+        private void propagate(int i) {
+            if (alwaysFails(i)) return;
+
+            byte opcode = program.opcodes[i];
+            int delta   = delta(opcode);
+            int lo      = safeLo(i) + delta;
+            int hi      = safeHi(i) + delta;
+            int clo     = safeCallLo(i);
+            int chi     = safeCallHi(i);
+
+            switch (opcode) {
+            case GOTO:
+                join(program.targets[i], lo, hi, clo, chi);
+                break;
+            case CALL:
+                join(program.targets[i], lo, hi, clo + 1, chi + 1);
+                if (program.operands[i] == NOWHERE) {
+                    nowhereLo = Math.min(nowhereLo, clo);
+                    nowhereHi = Math.max(nowhereHi, chi);
+                    for (int r: rets) join(r + 1, retLo, retHi, nowhereLo, nowhereHi);
+                } else {
+                    returnLo[i + 1] = Math.min(returnLo[i + 1], clo);
+                    returnHi[i + 1] = Math.max(returnHi[i + 1], chi);
+                    join(i + 1, retLo, retHi, returnLo[i + 1], returnHi[i + 1]);
+                }
+                break;
+            case RET:
+                // A RET goes back to the op after the CALL that put
+                // the address on the call stack, with csp where it was
+                // at the CALL, and sp where it is now. Or, if the CALL
+                // pushed NOWHERE, on to the op after the RET.
+                retLo = Math.min(retLo, lo);
+                retHi = Math.max(retHi, hi);
+                for (int r: returns) join(r, retLo, retHi, returnLo[r], returnHi[r]);
+                for (int r: rets) join(r + 1, retLo, retHi, nowhereLo, nowhereHi);
+                break;
+            case STOP:
+                break;
+            default:
+                join(i + 1, lo, hi, clo, chi);
+                if (isBranch(opcode)) join(program.targets[i], lo, hi, clo, chi);
+            }
+        }
+
+        Program verified() {
+            // Ops after reached CALLs have to stay put since CALL
+            // returns to the next op, even if nothing ever returns.
+            boolean[] keep = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                keep[i] |= reached(i);
+                if (reached(i) && program.opcodes[i] == CALL) keep[i + 1] = true;
+            }
+
+            // Index of each kept op, or its check, in the new program.
+            int[] index = new int[n];
+            int size    = 0;
+            for (int i = 0; i < n; i++) {
+                if (keep[i]) {
+                    index[i] = size;
+                    size    += needsCheck(i) ? 2 : 1;
+                }
+            }
+
+            byte[] opcodes  = new byte[size];
+            int[] operands  = new int[size];
+            int[] targets   = new int[size];
+            int[] addresses = new int[size];
+            int[] costs     = new int[size];
+
+            for (int i = 0; i < n; i++) {
+                if (!keep[i]) continue;
+                int j       = index[i];
+                byte opcode = program.opcodes[i];
+
+                if (!reached(i) || alwaysFails(i)) {
+                    opcodes[j]   = STOP;
+                    targets[j]   = -1;
+                    addresses[j] = program.addresses[i];
+                    costs[j]     = program.costs[i];
+                    continue;
+                }
+
+                if (needsCheck(i)) {
+                    if (opcode == CALL || opcode == RET) {
+                        opcodes[j]  = CALLCHECK;
+                        targets[j]  = opcode == RET ? 1 : 0;
+                        operands[j] = opcode == CALL ? 1 : 0;
+                    } else {
+                        opcodes[j]  = CHECK;
+                        targets[j]  = low(opcode, program.targets[i], depth);
+                        operands[j] = depth - high(opcode, program.operands[i], program.targets[i], depth);
+                    }
+                    addresses[j] = program.addresses[i];
+                    costs[j]     = 0;
+                    j++;
+                }
+
+                opcodes[j]   = opcode;
+                operands[j]  = program.operands[i];
+                addresses[j] = program.addresses[i];
+                costs[j]     = program.costs[i];
+                targets[j]   = isBranch(opcode) ? index[program.targets[i]] : program.targets[i];
+
+                if (opcode == PUSHK && !mightFail(i)) {
+                    // No need for it to check anymore.
+                    opcodes[j] = PUSH;
+                    targets[j] = -1;
+                }
+            }
+            return new Program(opcodes, operands, targets, addresses, costs);
+        }
+
+        private boolean needsCheck(int i) {
+            if (!reached(i) || alwaysFails(i)) return false;
+            byte opcode = program.opcodes[i];
+            if (opcode == CALL || opcode == RET) return mightFailCall(i);
+            return !checksItself(opcode) && mightFail(i);
+        }
+    }
+}
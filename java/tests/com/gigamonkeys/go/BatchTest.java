@@ -0,0 +1,66 @@
+package com.gigamonkeys.go;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Check that running a population with the batch execute gives the
+ * same results as running the critters one at a time.
+ */
+public class BatchTest {
+
+    public static void main(String[] argv) {
+        int n         = argv.length > 0 ? Integer.parseInt(argv[0]) : 1000;
+        Random random = new Random(23);
+
+        Critter[] critters = Fixtures.population(random, n);
+        for (int i = 0; i < n; i += 4) {
+            // Random genes rarely get as far as RAND so make sure some
+            // critters depend on it.
+            critters[i] = new Critter(new byte[] { VM.RAND, VM.IFNEG, 0, 5, VM.TURN_LEFT, VM.FORWARD });
+        }
+
+        VM batchVM  = Fixtures.vm(5);
+        VM singleVM = Fixtures.vm(5);
+
+        int runs       = 0;
+        int mismatches = 0;
+
+        Board board         = new Board(9);
+        GameContext context = new GameContext(board, Color.BLACK);
+
+        for (int move = 0; move < 20; move++) {
+            int[] positions  = new int[n];
+            int[] directions = new int[n];
+            for (int i = 0; i < n; i++) {
+                positions[i]  = random.nextInt(board.positions);
+                directions[i] = random.nextInt(4);
+                critters[i].position(positions[i], directions[i]);
+            }
+
+            // Every other move goes through a snapshot, which fills in
+            // its gradients as they're asked for.
+            int[] result = move % 2 == 0 ?
+                batchVM.execute(critters, positions, directions, context) :
+                batchVM.execute(critters, positions, directions, context.publish());
+
+            for (int i = 0; i < n; i++) {
+                int expected = singleVM.execute(critters[i], context);
+                if (result[i] != expected || directions[i] != critters[i].getDirection()) {
+                    if (mismatches++ < 10) {
+                        System.out.println("Mismatch for critter " + i + ": " + result[i] + "/" + directions[i] +
+                                           " vs " + expected + "/" + critters[i].getDirection());
+                    }
+                }
+                runs++;
+            }
+
+            if (!Fixtures.playRandomMove(board, move % 2 == 0 ? Color.BLACK : Color.WHITE, random)) break;
+        }
+        System.out.println(runs + " runs; " + mismatches + " mismatches.");
+        if (mismatches > 0) System.exit(1);
+    }
+}
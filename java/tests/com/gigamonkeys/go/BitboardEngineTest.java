@@ -0,0 +1,316 @@
+package com.gigamonkeys.go;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Unit test for com.gigamonkeys.go.BitboardEngine and ChainEngine.
+ * Plays random moves, with the occasional undo, on a chain-based and
+ * a bitboard-based Board side by side with a Reference board that
+ * works things out the way the original Board did, by walking groups
+ * from scratch, and checks that all three agree about every move and
+ * every position.
+ */
+public class BitboardEngineTest {
+
+    public static void main(String[] args) {
+
+        int games = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int[] sizes = { 3, 5, 9, 13, 19 };
+        Random r = new Random(1);
+        long moves = 0;
+        int[] statuses = new int[4];
+        long captures = 0;
+
+        // Random games hardly ever get into a ko so play one on purpose.
+        for (KoRule rule: KoRule.values()) {
+            Board chains        = new Board(5, 6.5, rule, Backend.CHAINS);
+            Board bits          = new Board(5, 6.5, rule, Backend.BITBOARD);
+            Reference reference = new Reference(5, rule);
+            for (int i = 0; i < KO.length; i++) {
+                Color color = KO[i][0] == 0 ? Color.BLACK : Color.WHITE;
+                int p       = KO[i][1];
+                int s0      = reference.tryPlaceStone(color, p);
+                int s1      = chains.tryPlaceStone(color, p);
+                int s2      = bits.tryPlaceStone(color, p);
+                int want    = i == KO.length - 1 ? Board.KO : Board.OK;
+                if (s0 != want || s1 != want || s2 != want) {
+                    fail("Status " + s0 + ", " + s1 + " and " + s2 + " for " + color + " at " + p + " in ko",
+                         reference, chains, bits);
+                }
+                statuses[s0]++;
+                moves++;
+            }
+        }
+
+        for (int g = 0; g < games; g++) {
+            int size            = sizes[g % sizes.length];
+            KoRule rule         = g % 2 == 0 ? KoRule.SIMPLE : KoRule.POSITIONAL_SUPERKO;
+            Board chains        = new Board(size, 6.5, rule, Backend.CHAINS);
+            Board bits          = new Board(size, 6.5, rule, Backend.BITBOARD);
+            Reference reference = new Reference(size, rule);
+            int played          = 0;
+
+            for (int i = 0; i < 4 * chains.positions; i++) {
+                if (played > 0 && r.nextInt(5) == 0) {
+                    chains.undo();
+                    bits.undo();
+                    reference.undo();
+                    played--;
+                } else {
+                    Color color = r.nextBoolean() ? Color.BLACK : Color.WHITE;
+                    int p       = r.nextInt(chains.positions);
+                    int before  = chains.stonesOnBoard(Color.BLACK) + chains.stonesOnBoard(Color.WHITE);
+                    int s0      = reference.tryPlaceStone(color, p);
+                    int s1      = chains.tryPlaceStone(color, p);
+                    int s2      = bits.tryPlaceStone(color, p);
+                    if (s1 != s0 || s2 != s0) {
+                        fail("Status " + s0 + " vs " + s1 + " and " + s2 + " for " + color + " at " + p,
+                             reference, chains, bits);
+                    }
+                    statuses[s0]++;
+                    if (s0 == Board.OK) {
+                        played++;
+                        captures += before + 1 - (chains.stonesOnBoard(Color.BLACK) + chains.stonesOnBoard(Color.WHITE));
+                    }
+                    moves++;
+                }
+
+                String expected = reference.toString();
+                if (chains.hash() != bits.hash() || !chains.toString().equals(expected) || !bits.toString().equals(expected)) {
+                    fail("Positions differ", reference, chains, bits);
+                }
+                if (size <= 9) {
+                    for (Color color: new Color[] { Color.BLACK, Color.WHITE }) {
+                        BitSet legal = reference.legalMoves(color);
+                        if (!chains.legalMoves(color).equals(legal) || !bits.legalMoves(color).equals(legal)) {
+                            fail("Legal moves differ for " + color, reference, chains, bits);
+                        }
+                    }
+                }
+            }
+        }
+
+        // Make sure the games actually got into the interesting cases.
+        if (captures == 0 || statuses[Board.SUICIDE] == 0 || statuses[Board.KO] == 0) {
+            throw new AssertionError("Games too dull: " + captures + " captures, " +
+                                     statuses[Board.SUICIDE] + " suicides, " + statuses[Board.KO] + " kos.");
+        }
+        System.out.println("Checked " + moves + " moves: " + captures + " stones captured, " +
+                           statuses[Board.SUICIDE] + " suicides, " + statuses[Board.KO] + " kos.");
+    }
+
+    // Black surrounds 6 from three sides and white surrounds 7. White
+    // plays 6, black takes it by playing 7, and white can't take back.
+    private final static int[][] KO = {
+        { 0, 1 }, { 1, 2 }, { 0, 5 }, { 1, 8 }, { 0, 11 }, { 1, 12 },
+        { 1, 6 }, { 0, 7 }, { 1, 6 }
+    };
+
+    private static void fail(String message, Reference reference, Board chains, Board bits) {
+        throw new AssertionError(message + reference + "\n" + chains + "\n" + bits);
+    }
+
+    /**
+     * The rules the way the original Board implemented them: stones
+     * in two BitSets, captures and suicide found by walking each
+     * group breadth first until we find a liberty, and ko by
+     * comparing whole positions. Slow but hard to get wrong.
+     */
+    private static class Reference {
+
+        private final int size;
+        private final int positions;
+        private final KoRule koRule;
+        private final BitSet blackStones;
+        private final BitSet whiteStones;
+
+        // The position after each move, starting with the empty board.
+        private final List<Position> positionsSoFar = new ArrayList<Position>();
+
+        Reference(int size, KoRule koRule) {
+            this.size        = size;
+            this.positions   = size * size;
+            this.koRule      = koRule;
+            this.blackStones = new BitSet(positions);
+            this.whiteStones = new BitSet(positions);
+            positionsSoFar.add(new Position(null, blackStones, whiteStones));
+        }
+
+        int tryPlaceStone(Color color, int position) {
+
+            if (!isEmpty(position)) return Board.OCCUPIED;
+
+            BitSet friends = color == Color.BLACK ? blackStones : whiteStones;
+            BitSet enemies = color == Color.BLACK ? whiteStones : blackStones;
+
+            friends.set(position);
+            BitSet killed = killed(position, friends, enemies);
+            enemies.andNot(killed);
+
+            if (!connectedTo(position).alive) {
+                // Nothing can have been killed if we're dead.
+                friends.clear(position);
+                return Board.SUICIDE;
+            }
+
+            Position newPosition = new Position(color, blackStones, whiteStones);
+            if (isKo(newPosition)) {
+                enemies.or(killed);
+                friends.clear(position);
+                return Board.KO;
+            }
+
+            positionsSoFar.add(newPosition);
+            return Board.OK;
+        }
+
+        void undo() {
+            positionsSoFar.remove(positionsSoFar.size() - 1);
+            Position last = positionsSoFar.get(positionsSoFar.size() - 1);
+            blackStones.clear();
+            blackStones.or(last.blackStones);
+            whiteStones.clear();
+            whiteStones.or(last.whiteStones);
+        }
+
+        BitSet legalMoves(Color color) {
+            BitSet legal = new BitSet(positions);
+            for (int p = 0; p < positions; p++) {
+                if (tryPlaceStone(color, p) == Board.OK) {
+                    legal.set(p);
+                    undo();
+                }
+            }
+            return legal;
+        }
+
+        private boolean isKo(Position newPosition) {
+            switch (koRule) {
+            case SIMPLE:
+                // Same as the position after the same player's
+                // previous move, player to move included.
+                int n = positionsSoFar.size();
+                return n >= 2 && positionsSoFar.get(n - 2).equals(newPosition);
+            case POSITIONAL_SUPERKO:
+                for (Position p: positionsSoFar) {
+                    if (p.sameStones(newPosition)) return true;
+                }
+                return false;
+            default:
+                throw new IllegalStateException("Unknown ko rule: " + koRule);
+            }
+        }
+
+        private BitSet killed(int position, BitSet friends, BitSet enemies) {
+
+            BitSet live = new BitSet(positions);
+            BitSet dead = new BitSet(positions);
+
+            for (int n: neighbors(position)) {
+                if (enemies.get(n) && !(live.get(n) || dead.get(n))) {
+                    Stones s = connectedTo(n);
+                    (s.alive ? live : dead).or(s.stones);
+                }
+            }
+            return dead;
+        }
+
+        private Stones connectedTo(int position) {
+
+            BitSet stones            = new BitSet(positions);
+            Queue<Integer> toProcess = new LinkedList<Integer>();
+
+            stones.set(position);
+            toProcess.add(position);
+
+            BitSet friends = blackStones.get(position) ? blackStones : whiteStones;
+
+            while (!toProcess.isEmpty()) {
+                int p = toProcess.remove();
+                for (int n: neighbors(p)) {
+                    if (isEmpty(n)) {
+                        return new Stones(stones, true);
+                    } else if (friends.get(n) && !stones.get(n)) {
+                        stones.set(n);
+                        toProcess.add(n);
+                    }
+                }
+            }
+            return new Stones(stones, false);
+        }
+
+        private List<Integer> neighbors(int position) {
+
+            int x   = position % size;
+            int y   = position / size;
+            int max = size - 1;
+
+            List<Integer> neighbors = new ArrayList<Integer>(4);
+            if (y > 0)   neighbors.add(position - size);
+            if (y < max) neighbors.add(position + size);
+            if (x > 0)   neighbors.add(position - 1);
+            if (x < max) neighbors.add(position + 1);
+            return neighbors;
+        }
+
+        private boolean isEmpty(int position) {
+            return !(blackStones.get(position) || whiteStones.get(position));
+        }
+
+        public String toString() {
+            StringBuffer buf = new StringBuffer();
+            for (int p = 0; p < positions; p++) {
+                if ((p % size) == 0) buf.append("\n");
+                buf.append(blackStones.get(p) ? "@ " : whiteStones.get(p) ? "O " : ". ");
+            }
+            return buf.toString();
+        }
+    }
+
+    private static class Stones {
+        final BitSet stones;
+        final boolean alive;
+        Stones(BitSet stones, boolean alive) {
+            this.stones = stones;
+            this.alive  = alive;
+        }
+    }
+
+    private static class Position {
+
+        final Color justPlayed;
+        final BitSet blackStones;
+        final BitSet whiteStones;
+
+        Position(Color justPlayed, BitSet blackStones, BitSet whiteStones) {
+            this.justPlayed  = justPlayed;
+            this.blackStones = (BitSet)blackStones.clone();
+            this.whiteStones = (BitSet)whiteStones.clone();
+        }
+
+        boolean sameStones(Position that) {
+            return this.blackStones.equals(that.blackStones) && this.whiteStones.equals(that.whiteStones);
+        }
+
+        public boolean equals(Object other) {
+            if (other instanceof Position) {
+                Position that = (Position)other;
+                return this.justPlayed == that.justPlayed && sameStones(that);
+            }
+            return false;
+        }
+
+        public int hashCode() {
+            return blackStones.hashCode() ^ whiteStones.hashCode();
+        }
+    }
+}
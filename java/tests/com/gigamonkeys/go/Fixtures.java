@@ -0,0 +1,72 @@
+package com.gigamonkeys.go;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Bits and pieces shared by the tests that run random critters
+ * through a random game: the VM they run on, the critters
+ * themselves, and the moves.
+ */
+final class Fixtures {
+
+    private Fixtures() {}
+
+    /**
+     * A VM with room enough that random critters mostly run until
+     * they stop or use up their cycles, with random numbers from the
+     * given seed.
+     */
+    static VM vm(long seed) {
+        return new VM(16, 8, 16, 500, new Random(seed));
+    }
+
+    /**
+     * Likewise but profiling into the given profile.
+     */
+    static VM vm(long seed, Profile profile) {
+        return new VM(16, 8, 16, 500, new Random(seed), profile);
+    }
+
+    /**
+     * Up to 400 random bytes.
+     */
+    static byte[] genes(Random random) {
+        byte[] genes = new byte[random.nextInt(400)];
+        random.nextBytes(genes);
+        return genes;
+    }
+
+    static Critter[] population(Random random, int n) {
+        Critter[] critters = new Critter[n];
+        for (int i = 0; i < n; i++) {
+            critters[i] = new Critter(genes(random));
+        }
+        return critters;
+    }
+
+    /**
+     * Play a random legal move for color. Returns false, without
+     * playing, if there aren't any.
+     */
+    static boolean playRandomMove(Board board, Color color, Random random) {
+        BitSet legal = board.legalMoves(color);
+        if (legal.isEmpty()) return false;
+        board.placeStone(color, randomMove(legal, random));
+        return true;
+    }
+
+    /**
+     * One of the set bits, picked at random.
+     */
+    static int randomMove(BitSet legal, Random random) {
+        int k = random.nextInt(legal.cardinality());
+        int p = legal.nextSetBit(0);
+        while (k-- > 0) p = legal.nextSetBit(p + 1);
+        return p;
+    }
+}
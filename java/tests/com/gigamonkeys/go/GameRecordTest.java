@@ -0,0 +1,53 @@
+package com.gigamonkeys.go;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Unit test for com.gigamonkeys.go.GameRecordWriter and
+ * GameRecordReader. Records a batch of random games into one buffer,
+ * replays them, and checks each replay ends in the same position.
+ */
+public class GameRecordTest {
+
+    public static void main(String[] args) throws Exception {
+
+        int games  = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int[] sizes = { 5, 9, 13, 19 };
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GameRecordWriter writer     = new GameRecordWriter(bytes);
+        List<String> finals         = new ArrayList<String>();
+
+        for (int g = 0; g < games; g++) {
+            Board board = new Board(sizes[g % sizes.length]);
+            new Game(new RandomPlayer(), new RandomPlayer(), board, writer, "black-" + g, "white-" + g).run();
+            finals.add(board.toString());
+        }
+        writer.close();
+
+        GameRecordReader reader = new GameRecordReader(new ByteArrayInputStream(bytes.toByteArray()));
+        int g = 0;
+        while (reader.nextGame()) {
+            if (!reader.getBlackId().equals("black-" + g) || !reader.getWhiteId().equals("white-" + g)) {
+                throw new AssertionError("Wrong players for game " + g);
+            }
+            String replayed = reader.replay().toString();
+            if (!replayed.equals(finals.get(g))) {
+                throw new AssertionError("Game " + g + " replayed wrong:" + replayed + "\n" + finals.get(g));
+            }
+            g++;
+        }
+        reader.close();
+
+        if (g != games) throw new AssertionError("Read " + g + " games, expected " + games);
+
+        System.out.println("Replayed " + games + " games from " + bytes.size() + " bytes.");
+    }
+}
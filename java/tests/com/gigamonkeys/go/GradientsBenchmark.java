@@ -0,0 +1,50 @@
+package com.gigamonkeys.go;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Compare the scalar and vector versions of the Gradients update
+ * loop. Run with --add-modules jdk.incubator.vector or both will be
+ * scalar.
+ */
+public class GradientsBenchmark {
+
+    private static final int ITERATIONS = 200000;
+
+    public static void main(String[] argv) {
+        GradientRows scalar = new GradientRows();
+        GradientRows vector = GradientRows.forPlatform();
+
+        System.out.println("Platform rows: " + vector.getClass().getSimpleName());
+
+        for (int round = 0; round < 3; round++) {
+            for (int size: new int[] { 9, 13, 19 }) {
+                long s = time(size, scalar);
+                long v = time(size, vector);
+                System.out.println(String.format("%2dx%-2d  scalar %6.1f ns  vector %6.1f ns  speedup %.2f",
+                                                 size, size, s / (double)ITERATIONS, v / (double)ITERATIONS, s / (double)v));
+            }
+            System.out.println();
+        }
+    }
+
+    private static long time(int size, GradientRows rows) {
+        Gradients g    = new Gradients(size, Integer.MAX_VALUE, rows);
+        Random random  = new Random(size);
+        int positions  = size * size;
+        int[] stones   = new int[ITERATIONS];
+        for (int i = 0; i < stones.length; i++) stones[i] = random.nextInt(positions);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < stones.length; i++) {
+            if ((i & 1) == 0) g.set(stones[i]); else g.clear(stones[i]);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (g.values[0] == 42) System.out.print(""); // Keep the work alive.
+        return elapsed;
+    }
+}
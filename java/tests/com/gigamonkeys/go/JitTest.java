@@ -0,0 +1,66 @@
+package com.gigamonkeys.go;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Check that critters compiled by Jit behave exactly like the
+ * interpreted originals, random numbers and all.
+ */
+public class JitTest {
+
+    public static void main(String[] argv) {
+        int critters = argv.length > 0 ? Integer.parseInt(argv[0]) : 2000;
+        Random random = new Random(42);
+
+        VM interpreted = Fixtures.vm(17);
+        VM compiled    = Fixtures.vm(17);
+
+        Critter[] plain  = new Critter[critters];
+        Critter[] jitted = new Critter[critters];
+
+        int failures = 0;
+        for (int i = 0; i < critters; i++) {
+            byte[] genes = Fixtures.genes(random);
+            plain[i]  = new Critter(genes);
+            jitted[i] = new Critter(genes);
+            if (!compiled.jit(jitted[i])) failures++;
+        }
+
+        int runs       = 0;
+        int mismatches = 0;
+
+        for (int size: new int[] { 9, 19 }) {
+            Board board = new Board(size);
+            GameContext[] contexts = { new GameContext(board, Color.BLACK), new GameContext(board, Color.WHITE) };
+            Color color = Color.BLACK;
+
+            for (int move = 0; move < 40; move++) {
+                GameContext context = contexts[color == Color.BLACK ? 0 : 1];
+                for (int i = 0; i < critters; i++) {
+                    int position  = random.nextInt(board.positions);
+                    int direction = random.nextInt(4);
+                    plain[i].position(position, direction);
+                    jitted[i].position(position, direction);
+                    int p1 = interpreted.execute(plain[i], context);
+                    int p2 = compiled.execute(jitted[i], context);
+                    if (p1 != p2 || plain[i].getDirection() != jitted[i].getDirection()) {
+                        if (mismatches++ < 10) {
+                            System.out.println("Mismatch for critter " + i + ": " + p1 + "/" + plain[i].getDirection() +
+                                               " vs " + p2 + "/" + jitted[i].getDirection());
+                            System.out.print(plain[i].getProgram());
+                        }
+                    }
+                    runs++;
+                }
+                if (!Fixtures.playRandomMove(board, color, random)) break;
+                color = color == Color.BLACK ? Color.WHITE : Color.BLACK;
+            }
+        }
+        System.out.println(runs + " runs; " + mismatches + " mismatches; " + failures + " not compiled.");
+        if (mismatches > 0) System.exit(1);
+    }
+}
@@ -0,0 +1,371 @@
+package com.gigamonkeys.go;
+
+import java.util.List;
+import java.util.Random;
+
+import static com.gigamonkeys.go.GameContext.*;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Check the VM, interpreted, optimized, and compiled, against the
+ * original interpreter, which walked the linked Ops made by
+ * VM.compile rather than a flat Program. The genomes are dense with
+ * CALLs and RETs and often end with a CALL, since a CALL with no op
+ * after it is the one place the two representations differ.
+ */
+public class LinkedOpsTest {
+
+    // A CALL at the very end whose subroutine RETs. The RET carries
+    // on with the op after it, so this walks south in a loop.
+    private final static byte[] NOWHERE = { VM.GOTO, 0, 6, VM.FORWARD, VM.RET, VM.FORWARD, VM.CALL, 0, 3 };
+
+    private final static byte[] COMMON = {
+        VM.PUSH, VM.PUSH, VM.POP, VM.DUP, VM.INC, VM.DEC, VM.ADD, VM.GOTO, VM.IFZERO, VM.IFNZERO,
+        VM.CALL, VM.CALL, VM.RET, VM.RET, VM.FORWARD, VM.FORWARD, VM.TURN_LEFT, VM.TURN_RIGHT,
+        VM.RAND, VM.MINE, VM.EMPTY, VM.EMPTY_GRADIENT, VM.POSITION, VM.STOP, VM.SWAP, VM.LOAD, VM.STORE
+    };
+
+    public static void main(String[] argv) {
+        int critters  = argv.length > 0 ? Integer.parseInt(argv[0]) : 3000;
+        Random random = new Random(5);
+
+        Board board = new Board(9);
+        GameContext context = new GameContext(board, Color.BLACK);
+        board.placeStone(Color.BLACK, 40);
+        board.placeStone(Color.WHITE, 41);
+
+        int runs = 0;
+        int bad  = 0;
+
+        Critter regression = new Critter(NOWHERE);
+        regression.position(0, 2);
+        int p = new VM(16, 16, 16, 200).execute(regression, context);
+        if (p != 72 || p != linked(NOWHERE, 0, 2, 16, 16, 16, 200, context, new Random(0))[0]) {
+            System.out.println("CALL at the end went to " + p + ", not 72.");
+            bad++;
+        }
+
+        for (int i = 0; i < critters; i++) {
+            byte[] genes  = genes(random);
+            int stack     = random.nextInt(6);
+            int calls     = random.nextInt(4);
+            int maxCycles = random.nextInt(4) == 0 ? 500 : random.nextInt(40);
+            long seed     = random.nextLong();
+
+            VM[] vms = {
+                new VM(stack, calls, 4, maxCycles, new Random(seed), true),
+                new VM(stack, calls, 4, maxCycles, new Random(seed)),
+                new VM(stack, calls, 4, maxCycles, new Random(seed)),
+            };
+            Critter[] copies = { new Critter(genes), new Critter(genes), new Critter(genes) };
+            vms[2].jit(copies[2]);
+            Random expectedRandom = new Random(seed);
+
+            for (int j = 0; j < 5; j++) {
+                int position  = random.nextInt(board.positions);
+                int direction = random.nextInt(4);
+                int[] expected = linked(genes, position, direction, stack, calls, 4, maxCycles, context, expectedRandom);
+                for (int k = 0; k < vms.length; k++) {
+                    copies[k].position(position, direction);
+                    int actual = vms[k].execute(copies[k], context);
+                    runs++;
+                    if (actual != expected[0] || copies[k].getDirection() != expected[1]) {
+                        if (bad++ < 5) {
+                            System.out.println("Mismatch (VM " + k + "): " + expected[0] + "/" + expected[1] +
+                                               " vs " + actual + "/" + copies[k].getDirection());
+                            System.out.print(Program.unoptimized(genes));
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println(runs + " runs; " + bad + " mismatches.");
+        if (bad > 0) System.exit(1);
+    }
+
+    private static byte[] genes(Random random) {
+        byte[] genes = new byte[4 + random.nextInt(30)];
+        int i = 0;
+        while (i < genes.length) {
+            byte op = COMMON[random.nextInt(COMMON.length)];
+            genes[i++] = op;
+            if (VM.PUSH <= op && op <= VM.CALL && i + 1 < genes.length) {
+                genes[i++] = 0;
+                genes[i++] = (byte)random.nextInt(op == VM.PUSH ? 4 : genes.length);
+            }
+        }
+        if (random.nextBoolean() && genes.length > 3) {
+            // End with a CALL.
+            genes[genes.length - 3] = VM.CALL;
+            genes[genes.length - 2] = 0;
+            genes[genes.length - 1] = (byte)random.nextInt(genes.length);
+        }
+        return genes;
+    }
+
+    /*
+     * The original interpreter, verbatim except for reading the board
+     * from the packed perception. Returns the final position and
+     * direction.
+     */
+    private static int[] linked(byte[] genes, int position, int direction, int stackDepth, int callstackDepth,
+                                int memorySize, int maxCycles, GameContext context, Random random) {
+        int tos        = 0;
+        int sp         = 0;
+        int csp        = 0;
+        int cycles     = 0;
+
+        int[] stack    = new int[stackDepth];
+        Op[] callstack = new Op[callstackDepth];
+        int[] memory   = new int[memorySize];
+
+        int tmp;
+
+        List<Op> ops = VM.compile(genes);
+        Op op        = ops.get(0);
+        int size     = context.topology.size;
+
+        // The original had all the gradients up to date up front.
+        for (int slot: new int[] { MINE_GRADIENT_SLOT, THEIRS_GRADIENT_SLOT, EMPTY_GRADIENT_SLOT }) {
+            context.updateGradient(slot);
+        }
+        int[] perception = context.getPerception();
+
+        try {
+            execute:
+            while (op != null) {
+                if (cycles++ > maxCycles) break;
+
+                Op next = null;
+
+                switch (op.opcode) {
+                case VM.NOP:
+                    break;
+                case VM.LOAD:
+                    tos = memory[tos % memory.length];
+                    break;
+                case VM.STORE:
+                    memory[tos % memory.length] = stack[--sp];
+                    tos = stack[--sp];
+                    break;
+                case VM.ADD:
+                    tos += stack[--sp];
+                    break;
+                case VM.SUB:
+                    tos -= stack[--sp];
+                    break;
+                case VM.MUL:
+                    tos *= stack[-sp];
+                    break;
+                case VM.DIV:
+                    tmp = stack[--sp];
+                    tos = tmp == 0 ? 0 : tos / tmp;
+                    break;
+                case VM.MOD:
+                    tmp = stack[--sp];
+                    tos = tmp == 0 ? 0 : tos % tmp;
+                    break;
+                case VM.INC:
+                    tos++;
+                    break;
+                case VM.DEC:
+                    tos--;
+                    break;
+                case VM.RAND:
+                    stack[sp++] = tos;
+                    tos = random.nextInt();
+                    break;
+                case VM.FORWARD:
+                    switch (direction) {
+                    case 0: // North
+                        if (position >= size) position -= size;
+                        break;
+                    case 1: // East
+                        if ((position % size) < (size - 1)) position += 1;
+                        break;
+                    case 2: // South
+                        if (position < (size * (size - 1))) position += size;
+                        break;
+                    case 3: // West
+                        if ((position % size) > 0) position -= 1;
+                        break;
+                    }
+                    break;
+                case VM.TURN_AROUND:
+                    direction = (direction + 2) % 4;
+                    break;
+                case VM.TURN_RIGHT:
+                    direction = (direction + 1) % 4;
+                    break;
+                case VM.TURN_LEFT:
+                    // Not -1 because of % actually being rem not mod.
+                    direction = (direction + 3) % 4;
+                    break;
+                case VM.POSITION:
+                    stack[sp++] = tos;
+                    tos = position;
+                    break;
+                case VM.BOOLE_1:
+                    sp--;
+                    break;
+                case VM.BOOLE_2:
+                    tos = stack[--sp];
+                    break;
+                case VM.BOOLE_ANDC1:
+                    tos = ~tos & stack[--sp];
+                    break;
+                case VM.BOOLE_ANDC2:
+                    tos = tos & ~stack[--sp];
+                    break;
+                case VM.BOOLE_AND:
+                    tos = tos & stack[--sp];
+                    break;
+                case VM.BOOLE_C1:
+                    tos = ~tos;
+                    sp--;
+                    break;
+                case VM.BOOLE_C2:
+                    tos = ~stack[--sp];
+                    break;
+                case VM.BOOLE_CLR:
+                    tos = 0;
+                    sp--;
+                    break;
+                case VM.BOOLE_EQV:
+                    tos = ~(tos ^ stack[--sp]);
+                    break;
+                case VM.BOOLE_IOR:
+                    tos = tos | stack[--sp];
+                    break;
+                case VM.BOOLE_NAND:
+                    tos = ~(tos & stack[--sp]);
+                    break;
+                case VM.BOOLE_NOR:
+                    tos = ~(tos | stack[--sp]);
+                    break;
+                case VM.BOOLE_ORC1:
+                    tos = ~tos | stack[--sp];
+                    break;
+                case VM.BOOLE_ORC2:
+                    tos = tos | ~stack[--sp];
+                    break;
+                case VM.BOOLE_SET:
+                    tos = 0xffffffff;
+                    sp--;
+                    break;
+                case VM.BOOLE_XOR:
+                    tos = tos ^ stack[--sp];
+                    break;
+                case VM.NOT:
+                    tos = ~tos;
+                    break;
+                case VM.POP:
+                    tos = stack[--sp];
+                    break;
+                case VM.SWAP:
+                    tmp = tos;
+                    tos = stack[sp - 1];
+                    stack[sp - 1] = tmp;
+                    break;
+                case VM.ROT:
+                    tmp = stack[sp - 3];
+                    stack[sp - 3] = stack[sp - 2];
+                    stack[sp - 1] = tos;
+                    tos = tmp;
+                    break;
+                case VM.DUP:
+                    stack[sp++] = tos;
+                    break;
+                case VM.OVER:
+                    stack[sp++] = tos;
+                    tos = stack[sp - 2];
+                    break;
+                case VM.TUCK:
+                    stack[sp] = stack[sp - 1];
+                    stack[sp - 1] = tos;
+                    sp++;
+                    break;
+                case VM.PUSH:
+                    stack[sp++] = tos;
+                    tos = op.operand;
+                    break;
+                case VM.IFZERO:
+                    next = tos == 0 ? op.next2 : op.next;
+                    tos = stack[--sp];
+                    break;
+                case VM.IFPOS:
+                    next = tos > 0 ? op.next2 : op.next;
+                    tos = stack[--sp];
+                    break;
+                case VM.IFNEG:
+                    next = tos < 0 ? op.next2 : op.next;
+                    tos = stack[--sp];
+                    break;
+                case VM.IFNZERO:
+                    next = tos != 0 ? op.next2 : op.next;
+                    tos = stack[--sp];
+                    break;
+                case VM.IFNPOS:
+                    next = tos <= 0 ? op.next2 : op.next;
+                    tos = stack[--sp];
+                    break;
+                case VM.IFNNEG:
+                    next = tos >= 0 ? op.next2 : op.next;
+                    tos = stack[--sp];
+                    break;
+                case VM.GOTO:
+                    next = op.next2;
+                    break;
+                case VM.CALL:
+                    callstack[csp++] = op.next;
+                    next = op.next2;
+                    break;
+                case VM.RET:
+                    next = callstack[--csp];
+                    break;
+                case VM.STOP:
+                    break execute;
+                case VM.MINE:
+                    stack[sp++] = tos;
+                    tos = (perception[position * STRIDE + FLAGS_SLOT] >>> MINE_BIT) & 1;
+                    break;
+                case VM.THEIRS:
+                    stack[sp++] = tos;
+                    tos = (perception[position * STRIDE + FLAGS_SLOT] >>> THEIRS_BIT) & 1;
+                    break;
+                case VM.EMPTY:
+                    stack[sp++] = tos;
+                    tos = (perception[position * STRIDE + FLAGS_SLOT] >>> EMPTY_BIT) & 1;
+                    break;
+                case VM.MINE_GRADIENT:
+                    stack[sp++] = tos;
+                    tos = perception[position * STRIDE + MINE_GRADIENT_SLOT];
+                    break;
+                case VM.THEIR_GRADIENT:
+                    stack[sp++] = tos;
+                    tos = perception[position * STRIDE + THEIRS_GRADIENT_SLOT];
+                    break;
+                case VM.EMPTY_GRADIENT:
+                    stack[sp++] = tos;
+                    tos = perception[position * STRIDE + EMPTY_GRADIENT_SLOT];
+                    break;
+                case VM.CORNER_GRADIENT:
+                    stack[sp++] = tos;
+                    tos = perception[position * STRIDE + CORNER_GRADIENT_SLOT];
+                    break;
+                default:
+                    throw new RuntimeException("Illegal opcode: " + op.opcode);
+                }
+                // Default case, if next hasn't been set, is to simply
+                // move to next instruction.
+                op = next != null ? next : op.next;
+            }
+        } catch (ArrayIndexOutOfBoundsException aioobe) {
+            // Ran off a stack, which stops the critter.
+        }
+        return new int[] { position, direction };
+    }
+}
@@ -0,0 +1,171 @@
+package com.gigamonkeys.go;
+
+import java.util.Random;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Check that optimized and verified programs behave exactly like
+ * unoptimized, unverified ones, interpreted and compiled, with a
+ * range of cycle limits and stack depths small enough that the edge
+ * cases actually come up.
+ */
+public class OptimizerTest {
+
+    // Weighted toward the ops the optimizer and verifier care about.
+    private static final byte[] COMMON = {
+        VM.PUSH, VM.PUSH, VM.PUSH, VM.POP, VM.POP, VM.NOT, VM.INC, VM.DEC, VM.ADD, VM.SUB, VM.DIV,
+        VM.MOD, VM.BOOLE_XOR, VM.BOOLE_NAND, VM.DUP, VM.DUP, VM.GOTO, VM.GOTO, VM.IFZERO, VM.IFZERO,
+        VM.IFNZERO, VM.IFNEG, VM.CALL, VM.RET, VM.FORWARD, VM.FORWARD, VM.FORWARD, VM.TURN_LEFT,
+        VM.TURN_RIGHT, VM.RAND, VM.MINE, VM.THEIRS, VM.EMPTY, VM.POSITION, VM.POSITION, VM.STOP,
+        VM.BOOLE_1, VM.BOOLE_1, VM.ROT, VM.SWAP, VM.OVER, VM.TUCK, VM.MUL, VM.LOAD, VM.STORE
+    };
+
+    // Sequences the optimizer fuses.
+    private static final byte[][] IDIOMS = {
+        { VM.PUSH, VM.ADD },
+        { VM.PUSH, VM.ADD, VM.IFNEG },
+        { VM.POSITION, VM.PUSH, VM.MOD },
+        { VM.DUP, VM.IFZERO },
+        { VM.DUP, VM.IFNZERO },
+        { VM.MINE, VM.IFNZERO },
+        { VM.EMPTY, VM.IFZERO },
+        { VM.BOOLE_1, VM.PUSH, VM.ADD, VM.FORWARD },
+    };
+
+    public static void main(String[] argv) {
+        int critters  = argv.length > 0 ? Integer.parseInt(argv[0]) : 3000;
+        Random random = new Random(7);
+
+        int before = 0;
+        int after  = 0;
+        int runs   = 0;
+        int bad    = 0;
+
+        for (int i = 0; i < critters; i++) {
+            // Every third critter is short and run with a tiny stack
+            // and cycle limit to exercise the edge cases.
+            boolean small = i % 3 == 2;
+            byte[] genes  = genes(random, i % 3 != 0, small ? 4 : 10, small ? 16 : 120);
+            Program plain     = Program.unoptimized(genes);
+            Program optimized = Program.compile(genes);
+            before += plain.size();
+            after  += optimized.size();
+
+            Critter reference = new Critter(genes, plain);
+            Critter[] others  = { new Critter(genes, optimized), new Critter(genes, optimized) };
+
+            int stackDepth = random.nextInt(small ? 4 : 7);
+            int callDepth  = random.nextInt(4);
+            int maxCycles  = small ? random.nextInt(12) : random.nextInt(4) == 0 ? 500 : random.nextInt(30);
+            long seed      = random.nextLong();
+
+            VM referenceVM = new VM(stackDepth, callDepth, 4, maxCycles, new Random(seed), false);
+            VM[] otherVMs  = { new VM(stackDepth, callDepth, 4, maxCycles, new Random(seed)),
+                               new VM(stackDepth, callDepth, 4, maxCycles, new Random(seed)) };
+            otherVMs[1].jit(others[1]);
+
+            Board board = new Board(9);
+            GameContext context = new GameContext(board, Color.BLACK);
+            board.placeStone(Color.BLACK, 40);
+
+            // Second half repeats the first half's starts so memoized
+            // critters get checked on hits as well as misses.
+            int[] starts = new int[10];
+            for (int j = 0; j < 20; j++) {
+                if (j < 10) starts[j] = random.nextInt(board.positions * 4);
+                int position  = starts[j % 10] / 4;
+                int direction = starts[j % 10] % 4;
+                reference.position(position, direction);
+                int expected = referenceVM.execute(reference, context);
+                for (int k = 0; k < others.length; k++) {
+                    others[k].position(position, direction);
+                    int actual = otherVMs[k].execute(others[k], context);
+                    runs++;
+                    if (actual != expected || others[k].getDirection() != reference.getDirection()) {
+                        if (bad++ < 5) {
+                            System.out.println("Mismatch (" + (k == 0 ? "interpreted" : "compiled") +
+                                               ") stack " + stackDepth + " cycles " + maxCycles);
+                            System.out.print(plain);
+                            System.out.println("--");
+                            System.out.print(optimized);
+                        }
+                    }
+                }
+            }
+        }
+        int forgotten = alternating(random);
+        System.out.println(runs + " runs; " + bad + " mismatches; ops " + before + " -> " + after + "; " +
+                           forgotten + " forgotten memos.");
+        if (bad > 0 || forgotten > 0) System.exit(1);
+    }
+
+    /*
+     * Run one memoizable critter alternately with two differently
+     * set up VMs. Both should get the right answers and both sets of
+     * memoized results should still be there at the end. Returns how
+     * many starts, of either set, were forgotten.
+     */
+    private static int alternating(Random random) {
+        // Walks until it runs out of cycles so where it ends up
+        // depends on the cycle limit.
+        byte[] genes      = { VM.FORWARD, VM.TURN_RIGHT, VM.FORWARD, VM.GOTO, 0, 0 };
+        Critter critter   = new Critter(genes);
+        Critter reference = new Critter(genes, Program.unoptimized(genes));
+        VM[] vms          = { new VM(16, 8, 16, 500, new Random(1)), new VM(4, 2, 4, 7, new Random(1)) };
+        VM[] referenceVMs = { new VM(16, 8, 16, 500, new Random(1), true), new VM(4, 2, 4, 7, new Random(1), true) };
+
+        Board board = new Board(9);
+        GameContext context = new GameContext(board, Color.BLACK);
+        int[] starts = new int[20];
+
+        for (int j = 0; j < starts.length * 2; j++) {
+            if (j < starts.length) starts[j] = random.nextInt(board.positions * 4);
+            int start = starts[j % starts.length];
+            for (int k = 0; k < vms.length; k++) {
+                critter.position(start / 4, start % 4);
+                reference.position(start / 4, start % 4);
+                if (vms[k].execute(critter, context) != referenceVMs[k].execute(reference, context)) {
+                    throw new RuntimeException("Mismatch running alternately from " + start);
+                }
+            }
+        }
+
+        int[] step    = context.topology.step;
+        int[] big     = critter.memo(16, 8, 16, 500, step);
+        int[] small   = critter.memo(4, 2, 4, 7, step);
+        int forgotten = 0;
+        for (int start: starts) {
+            if (big[start] == -1) forgotten++;
+            if (small[start] == -1) forgotten++;
+        }
+        return forgotten;
+    }
+
+    private static byte[] genes(Random random, boolean dense, int min, int spread) {
+        byte[] genes = new byte[min + random.nextInt(spread)];
+        if (dense) {
+            // Ops with small operands and jumps that land inside the
+            // program.
+            int i = 0;
+            while (i < genes.length) {
+                byte[] ops = random.nextInt(6) == 0
+                    ? IDIOMS[random.nextInt(IDIOMS.length)]
+                    : new byte[] { COMMON[random.nextInt(COMMON.length)] };
+                for (byte op: ops) {
+                    if (i == genes.length) break;
+                    genes[i++] = op;
+                    if (VM.PUSH <= op && op <= VM.CALL && i + 1 < genes.length) {
+                        genes[i++] = 0;
+                        genes[i++] = (byte)random.nextInt(op == VM.PUSH ? 4 : genes.length);
+                    }
+                }
+            }
+        } else {
+            random.nextBytes(genes);
+        }
+        return genes;
+    }
+}
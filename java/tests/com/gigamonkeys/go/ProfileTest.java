@@ -0,0 +1,150 @@
+package com.gigamonkeys.go;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.gigamonkeys.go.Profile.Termination;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Check that a profiling VM moves critters exactly like an ordinary
+ * one, that its profile adds up, and that it gives the right reason
+ * for stopping on some programs where we know the answer. Then dump
+ * the profile.
+ */
+public class ProfileTest {
+
+    private final static Object[][] REASONS = {
+        { new byte[] { VM.STOP, VM.TURN_LEFT },          Termination.STOP },
+        { new byte[] { VM.TURN_LEFT },                   Termination.END },
+        { new byte[] { VM.GOTO, 0, 0 },                  Termination.CYCLES },
+        { new byte[] { VM.POP },                         Termination.UNDERFLOW },
+        { new byte[] { VM.DUP, VM.GOTO, 0, 0 },          Termination.OVERFLOW },
+        { new byte[] { VM.CALL, 0, 0 },                  Termination.CALL_OVERFLOW },
+        { new byte[] { VM.RET },                         Termination.RET_UNDERFLOW },
+        { new byte[] { VM.DEC, VM.LOAD },                Termination.BAD_ADDRESS },
+    };
+
+    public static void main(String[] argv) {
+        int critters = argv.length > 0 ? Integer.parseInt(argv[0]) : 2000;
+        Random random = new Random(11);
+
+        Profile profile = new Profile();
+        VM plain        = Fixtures.vm(3);
+        VM profiling    = Fixtures.vm(3, profile);
+
+        Critter[] population = Fixtures.population(random, critters);
+
+        int runs       = 0;
+        int mismatches = 0;
+
+        Board board = new Board(19);
+        GameContext[] contexts = { new GameContext(board, Color.BLACK), new GameContext(board, Color.WHITE) };
+        Color color = Color.BLACK;
+
+        for (int move = 0; move < 20; move++) {
+            GameContext context = contexts[color == Color.BLACK ? 0 : 1];
+            for (Critter critter: population) {
+                int position  = random.nextInt(board.positions);
+                int direction = random.nextInt(4);
+                critter.position(position, direction);
+                int expected = plain.execute(critter, context);
+                int d        = critter.getDirection();
+                critter.position(position, direction);
+                int actual   = profiling.execute(critter, context);
+                if (actual != expected || critter.getDirection() != d) {
+                    if (mismatches++ < 10) {
+                        System.out.println("Mismatch: " + expected + "/" + d + " vs " + actual + "/" + critter.getDirection());
+                        System.out.print(critter.unoptimized());
+                    }
+                }
+                runs++;
+            }
+            if (!Fixtures.playRandomMove(board, color, random)) break;
+            color = color == Color.BLACK ? Color.WHITE : Color.BLACK;
+        }
+
+        long ops = 0;
+        for (int i = 0; i < 256; i++) ops += profile.count((byte)i);
+        long stopped = 0;
+        for (Termination why: Termination.values()) stopped += profile.terminations(why);
+        long bucketed = 0;
+        for (long n: profile.histogram()) bucketed += n;
+
+        int bad = 0;
+        if (profile.executions() != runs || stopped != runs || bucketed != runs || ops != profile.cycles()) {
+            System.out.println("Profile doesn't add up.");
+            bad++;
+        }
+
+        // Several threads sharing a profile should count the same as
+        // one thread doing all the work. (Leaving out the critters
+        // that use RAND since they'd see different random numbers.)
+        final List<Critter> steady = new ArrayList<Critter>();
+        for (Critter critter: population) {
+            boolean rand = false;
+            for (byte opcode: critter.unoptimized().opcodes) rand |= opcode == VM.RAND;
+            if (!rand) steady.add(critter);
+        }
+
+        final ContextSnapshot snapshot = contexts[0].publish();
+        Profile alone  = new Profile();
+        Profile shared = new Profile();
+        VM single      = Fixtures.vm(3, alone);
+        for (int i = 0; i < steady.size(); i++) {
+            steady.get(i).position(i % board.positions, i % 4);
+            single.execute(steady.get(i), snapshot);
+        }
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final VM vm     = Fixtures.vm(3, shared);
+            final int first = t;
+            final int every = threads.length;
+            threads[t] = new Thread() {
+                public void run() {
+                    for (int i = first; i < steady.size(); i += every) {
+                        steady.get(i).position(i % snapshot.topology.positions, i % 4);
+                        vm.execute(steady.get(i), snapshot);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread: threads) {
+            try { thread.join(); } catch (InterruptedException ie) { throw new RuntimeException(ie); }
+        }
+        boolean same = alone.executions() == shared.executions() && alone.cycles() == shared.cycles();
+        for (int i = 0; i < 256; i++) same &= alone.count((byte)i) == shared.count((byte)i);
+        if (!same) {
+            System.out.println("Threads counted " + shared.cycles() + " cycles vs " + alone.cycles() + ".");
+            bad++;
+        }
+        // And having read it, the finished threads' counts should have
+        // been folded together.
+        if (shared.threads() != 0) {
+            System.out.println(shared.threads() + " finished threads still counted separately.");
+            bad++;
+        }
+
+        profile.dump(System.out);
+
+        for (Object[] reason: REASONS) {
+            Profile one = new Profile();
+            VM vm       = Fixtures.vm(3, one);
+            vm.execute(new Critter((byte[])reason[0]), contexts[0]);
+            if (one.terminations((Termination)reason[1]) != 1) {
+                System.out.println("Expected " + reason[1] + " for:");
+                System.out.print(Program.unoptimized((byte[])reason[0]));
+                bad++;
+            }
+        }
+
+        System.out.println(runs + " runs; " + mismatches + " mismatches; " + bad + " bad profiles.");
+        if (mismatches > 0 || bad > 0) System.exit(1);
+    }
+}
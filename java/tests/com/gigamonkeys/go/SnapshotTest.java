@@ -0,0 +1,133 @@
+package com.gigamonkeys.go;
+
+import java.util.BitSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/*
+ * Copyright (c) 2013 Peter Seibel
+ */
+
+/**
+ * Check that critters running against a snapshot on other threads
+ * see the board as it was when the snapshot was published, even
+ * though the game thread has gone on to play the next move, and
+ * publish again, before they even start.
+ */
+public class SnapshotTest {
+
+    private final static int THREADS = 4;
+
+    // Random genes rarely look at the gradients so make sure some
+    // critters do nothing else.
+    private final static byte[] LOOKER = {
+        VM.MINE_GRADIENT, VM.THEIR_GRADIENT, VM.SUB, VM.IFNEG, 0, 7, VM.TURN_LEFT,
+        VM.EMPTY_GRADIENT, VM.IFPOS, 0, 12, VM.TURN_RIGHT, VM.FORWARD, VM.GOTO, 0, 0
+    };
+
+    public static void main(String[] argv) {
+        int n         = argv.length > 0 ? Integer.parseInt(argv[0]) : 400;
+        Random random = new Random(31);
+
+        Critter[][] critters = new Critter[THREADS][n / THREADS];
+        for (Critter[] group: critters) {
+            for (int i = 0; i < group.length; i++) {
+                byte[] genes = Fixtures.genes(random);
+                group[i] = new Critter(i % 2 == 0 ? LOOKER : genes);
+            }
+        }
+
+        // The game, and a copy of it that's a move behind to work out
+        // what the critters should have seen.
+        Board board         = new Board(9);
+        GameContext context = new GameContext(board, Color.BLACK);
+        Board behind        = new Board(9);
+        GameContext before  = new GameContext(behind, Color.BLACK);
+        Color color         = Color.BLACK;
+
+        int runs       = 0;
+        int mismatches = 0;
+
+        for (int move = 0; move < 40; move++) {
+            BitSet legal = board.legalMoves(color);
+            if (legal.isEmpty()) break;
+
+            // Publish before anything brings the context's gradients
+            // up to date so the snapshot has to work them out itself.
+            final ContextSnapshot snapshot = context.publish();
+            final CountDownLatch moved     = new CountDownLatch(1);
+            final Throwable[] failures     = new Throwable[THREADS];
+            long seed                      = random.nextLong();
+
+            final int[][] positions  = new int[THREADS][];
+            final int[][] directions = new int[THREADS][];
+            int[][] expected         = new int[THREADS][];
+            int[][] turned           = new int[THREADS][];
+            Thread[] threads         = new Thread[THREADS];
+
+            for (int t = 0; t < THREADS; t++) {
+                final Critter[] group = critters[t];
+                final VM vm           = Fixtures.vm(seed + t);
+                final int which       = t;
+
+                positions[t]  = new int[group.length];
+                directions[t] = new int[group.length];
+                for (int i = 0; i < group.length; i++) {
+                    positions[t][i]  = random.nextInt(board.positions);
+                    directions[t][i] = random.nextInt(4);
+                }
+                expected[t] = positions[t].clone();
+                turned[t]   = directions[t].clone();
+
+                threads[t] = new Thread() {
+                    public void run() {
+                        try {
+                            // Don't start until the game has moved on.
+                            moved.await();
+                            vm.execute(group, positions[which], directions[which], snapshot);
+                        } catch (Throwable th) {
+                            failures[which] = th;
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+
+            // Play the move, look at all the gradients, and publish
+            // again, which uses the other snapshot.
+            int p = Fixtures.randomMove(legal, random);
+            board.placeStone(color, p);
+            for (int slot = GameContext.MINE_GRADIENT_SLOT; slot <= GameContext.EMPTY_GRADIENT_SLOT; slot++) {
+                context.updateGradient(slot);
+            }
+            context.publish();
+            moved.countDown();
+
+            // While they run, work out where they should end up.
+            for (int t = 0; t < THREADS; t++) {
+                Fixtures.vm(seed + t).execute(critters[t], expected[t], turned[t], before);
+            }
+            behind.placeStone(color, p);
+            color = color == Color.BLACK ? Color.WHITE : Color.BLACK;
+
+            for (int t = 0; t < THREADS; t++) {
+                try { threads[t].join(); } catch (InterruptedException ie) { throw new RuntimeException(ie); }
+                if (failures[t] != null) throw new RuntimeException("Critters failed on move " + move, failures[t]);
+            }
+
+            for (int t = 0; t < THREADS; t++) {
+                for (int i = 0; i < critters[t].length; i++) {
+                    if (positions[t][i] != expected[t][i] || directions[t][i] != turned[t][i]) {
+                        if (mismatches++ < 10) {
+                            System.out.println("Mismatch on move " + move + ": " + expected[t][i] + "/" + turned[t][i] +
+                                               " vs " + positions[t][i] + "/" + directions[t][i]);
+                        }
+                    }
+                    runs++;
+                }
+            }
+        }
+        System.out.println(runs + " runs; " + mismatches + " mismatches.");
+        if (mismatches > 0) System.exit(1);
+    }
+}
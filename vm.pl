@@ -6,18 +6,28 @@
 # maintain while I figure out exactly what opcodes I want and in what
 # order.
 #
+# Any files after VM.java just get a copy of its switch: the cases of
+# the first switch on opcodes[op] are replaced with the ones we
+# generated for VM.java, reindented to fit. That's how Profile.java
+# gets its interpreter.
+#
 
 use strict;
 use warnings;
 
 my @lines = ();
 my %cases = ();
+my @internal = ();
 my $current_case;
+my @generated = ();
+my $indent;
+my $first_file = 1;
 
 my $const_pat    = qr/^(\s+public final static byte ([A-Z][A-Z0-9_]+))\s+=\s+\d+;/;
-my $names_start  = qr/^\s+public final static String\[\] NAMES = {/;
+my $internal_pat = qr/^\s+final static byte ([A-Z][A-Z0-9_]+)\s+=\s+\d+;/;
+my $names_start  = qr/^\s+public final static String\[\] NAMES = \{/;
 my $names_end    = qr/^\s+};/;
-my $switch_start = qr/^\s+switch \(op\.opcode\) {/;
+my $switch_start = qr/^(\s+)switch \(opcodes\[op\]\) \{/;
 my $switch_end   = qr/^\s+default:/;
 my $case         = qr/^\s+case ([A-Z][A-Z0-9_]+):/;
 
@@ -32,18 +42,54 @@ my $case         = qr/^\s+case ([A-Z][A-Z0-9_]+):/;
 #  - in switch: collect cases
 #  - end of switch: dump all cases (including opcodes not found)
 #  - after: print
+#
+# And in the other files:
+#  - before switch: print
+#  - in switch: ignore
+#  - end of switch: dump VM.java's cases
+#  - after: print
 
-# states: default, in_opcodes, in_names, in_switch
+# states: default, in_opcodes, in_names, in_switch, in_copy, copied
 my $state = 'default';
 
 while (<>) {
-    if ($state eq 'default') {
+    if (not $first_file) {
+        if ($state eq 'default' and /$switch_start/) {
+            print;
+            change_state('in_copy');
+            my $by = length($1) - $indent;
+            foreach my $line (@generated) {
+                my $copy = $line;
+                if ($by < 0) {
+                    my $n = -$by;
+                    $copy =~ s/^ {0,$n}//;
+                } elsif ($copy =~ /\S/) {
+                    $copy = (" " x $by) . $copy;
+                }
+                print $copy;
+            }
+        } elsif ($state eq 'in_copy') {
+            if (/$switch_end/) {
+                print;
+                change_state('copied');
+            }
+        } else {
+            print;
+        }
+
+    } elsif ($state eq 'default') {
         if (/$const_pat/) {
             push @lines, $_;
             change_state('in_opcodes');
         } elsif (/$switch_start/) {
+            $indent = length($1);
             print;
             change_state('in_switch');
+        } elsif (/$internal_pat/) {
+            # Internal opcodes are numbered by hand and their cases
+            # go after all the public ones.
+            push @internal, $1;
+            print;
         } else {
             print;
         }
@@ -68,12 +114,18 @@ while (<>) {
             $cases{$current_case} = [];
         } elsif (/$switch_end/) {
             dump_cases();
+            print @generated;
             print;
             change_state('default');
         } else {
             push @{$cases{$current_case}}, $_;
         }
     }
+} continue {
+    if (eof) {
+        $first_file = 0;
+        change_state('default');
+    }
 }
 
 sub change_state {
@@ -115,40 +167,43 @@ sub dump_names {
 }
 
 sub dump_cases {
+    @generated = ();
     my %dumped = ();
     foreach my $line (@lines) {
         if ($line =~ $const_pat) {
             $dumped{$2}++;
-            print " " x 16;
-            print "case $2:\n";
+            emit((" " x 16) . "case $2:\n");
             if (defined $cases{$2}) {
                 my @code = @{$cases{$2}};
                 if ($#code == 0 and $2 ne 'NOP' and $2 ne 'STOP') {
                     unshift @code, (" " x 18) . "// Implement\n";
                 }
-                foreach my $line (@code) {
-                    print $line;
-                }
+                emit(@code);
             } else {
-                print " " x 16;
-                print "// Implement\n";
-                print " " x 16;
-                print "break;\n";
+                emit((" " x 16) . "// Implement\n", (" " x 16) . "break;\n");
             }
         }
     }
+    foreach my $case (@internal) {
+        if (defined $cases{$case}) {
+            $dumped{$case}++;
+            emit((" " x 16) . "case $case:\n", @{$cases{$case}});
+        }
+    }
     foreach my $case (keys %cases) {
         unless ($dumped{$case}) {
-            print " " x 12;
-            print "// case $case:\n";
+            emit((" " x 12) . "// case $case:\n");
             foreach my $line (@{$cases{$case}}) {
                 $line =~ s/^\s+//;
-                print " " x 12;
-                print "//    $line";
+                emit((" " x 12) . "//    $line");
             }
         }
     }
 }
 
+sub emit {
+    push @generated, @_;
+}
+
 
 __END__